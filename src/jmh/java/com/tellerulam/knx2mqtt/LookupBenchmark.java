@@ -0,0 +1,95 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.openjdk.jmh.annotations.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+import tuwien.auto.calimero.*;
+
+/**
+ * Group address lookups on the KNX side, and handling of incoming set/get messages
+ * on the MQTT side, on a table of 10k group addresses. The group addresses used are
+ * picked at random, so the lookups don't always hit the same cache lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class LookupBenchmark
+{
+	private static final int GA_COUNT=10000;
+	private static final int SAMPLES=1024;
+
+	private File projectFile;
+	private final GroupAddress addresses[]=new GroupAddress[SAMPLES];
+	private final String names[]=new String[SAMPLES];
+	private final String setTopics[]=new String[SAMPLES];
+	private final String getTopics[]=new String[SAMPLES];
+	private MQTTHandler handler;
+	private final MqttMessage message=new MqttMessage("1".getBytes(StandardCharsets.UTF_8));
+	private int next;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		projectFile=SyntheticProject.install(GA_COUNT,new String[]{ "1.001" });
+		handler=new MQTTHandler();
+		String prefix=MQTTHandler.getTopicPrefix();
+		Random r=new Random(42);
+		for(int ix=0;ix<SAMPLES;ix++)
+		{
+			int ga=r.nextInt(GA_COUNT);
+			addresses[ix]=new GroupAddress(ga+1);
+			names[ix]=SyntheticProject.name(ga);
+			setTopics[ix]=prefix+"set/"+names[ix];
+			getTopics[ix]=prefix+"get/"+names[ix];
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		SyntheticProject.delete(projectFile);
+	}
+
+	private int next()
+	{
+		return next=(next+1)&(SAMPLES-1);
+	}
+
+	@Benchmark
+	public GroupAddressInfo byAddress()
+	{
+		return GroupAddressManager.getGAInfoForAddress(addresses[next()]);
+	}
+
+	@Benchmark
+	public GroupAddressInfo byName()
+	{
+		return GroupAddressManager.getGAInfoForName(names[next()]);
+	}
+
+	/*
+	 * Writes are queued for the KNX sender thread, which is not running here, so they
+	 * just coalesce with the pending write to the same group address
+	 */
+	@Benchmark
+	public void processSetMessage()
+	{
+		handler.processMessage(setTopics[next()],message);
+	}
+
+	@Benchmark
+	public void processGetMessage()
+	{
+		handler.processMessage(getTopics[next()],message);
+	}
+}
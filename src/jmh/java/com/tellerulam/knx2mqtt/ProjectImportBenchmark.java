@@ -0,0 +1,58 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+/**
+ * Loading the group address table from a project file, either by parsing the
+ * project or from its cache file
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+@Fork(value=1,jvmArgsAppend="-Xmx1G")
+public class ProjectImportBenchmark
+{
+	@Param({ "1000", "10000", "50000" })
+	int gaCount;
+
+	@Param({ "false", "true" })
+	boolean cached;
+
+	private File projectFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		projectFile=SyntheticProject.create(gaCount,SyntheticProject.COMMON_DPTS);
+		SyntheticProject.use(projectFile);
+		// This creates the cache file
+		GroupAddressManager.load();
+	}
+
+	@Setup(Level.Invocation)
+	public void removeCache()
+	{
+		if(!cached)
+			new File(projectFile.getPath()+".cache").delete();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		SyntheticProject.delete(projectFile);
+	}
+
+	@Benchmark
+	public GroupAddressInfo load()
+	{
+		GroupAddressManager.load();
+		return GroupAddressManager.getGAInfoForName(SyntheticProject.name(gaCount-1));
+	}
+}
@@ -0,0 +1,112 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+/**
+ * Rendering of the status messages, as done by the MQTT publisher thread
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class PublishBenchmark
+{
+	private File projectFile;
+	private final JsonPayloadWriter w=new JsonPayloadWriter();
+	private final BinaryPayloadWriter cbor=new BinaryPayloadWriter(PayloadFormat.Encoding.CBOR);
+	private final BinaryPayloadWriter msgpack=new BinaryPayloadWriter(PayloadFormat.Encoding.MSGPACK);
+	private PublishQueue.Entry numeric;
+	private PublishQueue.Entry integer;
+	private PublishQueue.Entry text;
+	private PublishQueue.Entry unknown;
+
+	private static PublishQueue.Entry entry(GroupAddressInfo gai,String name,int valType,long valBits,String valString,String dpt,String textual)
+	{
+		PublishQueue.Entry e=PublishQueue.createBatch(1)[0];
+		long now=System.currentTimeMillis();
+		e.set(gai,name,valType,valBits,valString,0x1101,dpt,textual,now,now-60000);
+		return e;
+	}
+
+	@Setup
+	public void setup() throws IOException
+	{
+		projectFile=SyntheticProject.install(16,new String[]{ "9.001", "5.010", "16.000" });
+		GroupAddressInfo temp=GroupAddressManager.getGAInfoForName(SyntheticProject.name(0));
+		GroupAddressInfo count=GroupAddressManager.getGAInfoForName(SyntheticProject.name(1));
+		GroupAddressInfo label=GroupAddressManager.getGAInfoForName(SyntheticProject.name(2));
+		numeric=entry(temp,temp.name,ValueStore.TYPE_DOUBLE,Double.doubleToLongBits(21.34),null,temp.dpt,"21.34 \u00b0C");
+		integer=entry(count,count.name,ValueStore.TYPE_LONG,128,null,count.dpt,"128");
+		text=entry(label,label.name,ValueStore.TYPE_STRING,0,"Hello \"KNX\"",label.dpt,"Hello \"KNX\"");
+		unknown=entry(null,"1/2/3",ValueStore.TYPE_DOUBLE,Double.doubleToLongBits(0.5),null,"9.001",null);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		SyntheticProject.delete(projectFile);
+	}
+
+	@Benchmark
+	public byte[] renderDouble()
+	{
+		MQTTHandler.renderPayload(numeric,w,false);
+		return w.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] renderInteger()
+	{
+		MQTTHandler.renderPayload(integer,w,false);
+		return w.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] renderString()
+	{
+		MQTTHandler.renderPayload(text,w,false);
+		return w.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] renderUnknownGroupAddress()
+	{
+		MQTTHandler.renderPayload(unknown,w,false);
+		return w.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] renderDoubleCompact()
+	{
+		MQTTHandler.renderPayload(numeric,w,true);
+		return w.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] renderDoubleCBOR()
+	{
+		MQTTHandler.renderPayload(numeric,cbor,false);
+		return cbor.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] renderDoubleMessagePack()
+	{
+		MQTTHandler.renderPayload(numeric,msgpack,false);
+		return msgpack.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] renderStringMessagePack()
+	{
+		MQTTHandler.renderPayload(text,msgpack,false);
+		return msgpack.toByteArray();
+	}
+}
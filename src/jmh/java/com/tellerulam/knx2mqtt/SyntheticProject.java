@@ -0,0 +1,144 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+/**
+ * Generates ETS project files for the benchmarks.
+ *
+ * Group address ix gets the raw address ix+1, the name returned by name(ix) and the DPT
+ * dpts[ix % dpts.length]. The DPTs are spread over the places the importer looks at:
+ * a third is specified at the GroupAddress, a third at the ComObjectInstanceRef, and the
+ * rest only in the device descriptions, with one device description per 200 group addresses.
+ */
+public class SyntheticProject
+{
+	static final String COMMON_DPTS[]={ "1.001", "5.001", "5.010", "7.001", "9.001", "12.001", "13.001", "14.019", "16.000", "20.102" };
+
+	private static final int GAS_PER_DEVICE=16;
+	private static final int GAS_PER_APPLICATION=200;
+
+	static String name(int ix)
+	{
+		int raw=ix+1;
+		return "Main "+(raw>>11)+"/Middle "+((raw>>8)&7)+"/GA "+ix;
+	}
+
+	private static String dpst(String dpt)
+	{
+		String parts[]=dpt.split("\\.");
+		return "DPST-"+parts[0]+"-"+Integer.parseInt(parts[1]);
+	}
+
+	private static String comObjectId(int app,int dptIndex)
+	{
+		return "M-0001_A-"+app+"_O-"+dptIndex;
+	}
+
+	/**
+	 * Create a project file with gaCount group addresses in a temporary directory
+	 */
+	static File create(int gaCount,String dpts[]) throws IOException
+	{
+		File dir=File.createTempFile("knx2mqtt-bench",".dir");
+		dir.delete();
+		dir.mkdir();
+		File f=new File(dir,"bench-"+gaCount+".knxproj");
+		int appCount=Math.max(1,gaCount/GAS_PER_APPLICATION);
+		try(ZipOutputStream zos=new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f))))
+		{
+			Writer w=new OutputStreamWriter(zos,StandardCharsets.UTF_8);
+			zos.putNextEntry(new ZipEntry("P-0001/project.xml"));
+			w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<KNX><Project Id=\"P-0001\"/></KNX>\n");
+			w.flush();
+
+			zos.putNextEntry(new ZipEntry("P-0001/0.xml"));
+			w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<KNX xmlns=\"http://knx.org/xml/project/12\"><Project Id=\"P-0001\"><Installations><Installation>\n");
+			w.write("<Topology><Area Address=\"1\"><Line Address=\"1\">\n");
+			for(int ix=0;ix<gaCount;ix++)
+			{
+				if(ix%GAS_PER_DEVICE==0)
+				{
+					if(ix!=0)
+						w.write("</ComObjectInstanceRefs></DeviceInstance>\n");
+					w.write("<DeviceInstance Id=\"P-0001-0_DI-"+ix+"\"><ComObjectInstanceRefs>\n");
+				}
+				int dptIndex=ix%dpts.length;
+				String refId=comObjectId(ix%appCount,dptIndex)+"_R-"+dptIndex;
+				String dpt=ix%3==1 ? " DatapointType=\""+dpst(dpts[dptIndex])+"\"" : "";
+				w.write("<ComObjectInstanceRef RefId=\""+refId+"\""+dpt+"><Connectors><Send GroupAddressRefId=\"P-0001-0_GA-"+ix+"\"/></Connectors></ComObjectInstanceRef>\n");
+			}
+			if(gaCount!=0)
+				w.write("</ComObjectInstanceRefs></DeviceInstance>\n");
+			w.write("</Line></Area></Topology>\n");
+
+			w.write("<GroupAddresses><GroupRanges>\n");
+			int main=-1,middle=-1;
+			for(int ix=0;ix<gaCount;ix++)
+			{
+				int raw=ix+1;
+				if(raw>>11!=main || ((raw>>8)&7)!=middle)
+				{
+					if(main>=0)
+						w.write("</GroupRange>");
+					if(raw>>11!=main)
+					{
+						if(main>=0)
+							w.write("</GroupRange>\n");
+						main=raw>>11;
+						w.write("<GroupRange Name=\"Main "+main+"\">\n");
+					}
+					middle=(raw>>8)&7;
+					w.write("<GroupRange Name=\"Middle "+middle+"\">\n");
+				}
+				String dpt=ix%3==0 ? " DatapointType=\""+dpst(dpts[ix%dpts.length])+"\"" : "";
+				w.write("<GroupAddress Id=\"P-0001-0_GA-"+ix+"\" Address=\""+raw+"\" Name=\"GA "+ix+"\""+dpt+"/>\n");
+			}
+			if(main>=0)
+				w.write("</GroupRange></GroupRange>\n");
+			w.write("</GroupRanges></GroupAddresses>\n</Installation></Installations></Project></KNX>\n");
+			w.flush();
+
+			for(int app=0;app<appCount;app++)
+			{
+				zos.putNextEntry(new ZipEntry("M-0001/M-0001_A-"+app+".xml"));
+				w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<KNX><ManufacturerData><Manufacturer RefId=\"M-0001\"><ApplicationPrograms><ApplicationProgram Id=\"M-0001_A-"+app+"\"><Static>\n<ComObjectTable>\n");
+				for(int dptIndex=0;dptIndex<dpts.length;dptIndex++)
+					w.write("<ComObject Id=\""+comObjectId(app,dptIndex)+"\" Name=\"Object "+dptIndex+"\" DatapointType=\""+dpst(dpts[dptIndex])+"\"/>\n");
+				w.write("</ComObjectTable>\n<ComObjectRefs>\n");
+				for(int dptIndex=0;dptIndex<dpts.length;dptIndex++)
+					w.write("<ComObjectRef Id=\""+comObjectId(app,dptIndex)+"_R-"+dptIndex+"\" RefId=\""+comObjectId(app,dptIndex)+"\"/>\n");
+				w.write("</ComObjectRefs>\n</Static></ApplicationProgram></ApplicationPrograms></Manufacturer></ManufacturerData></KNX>\n");
+				w.flush();
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * Create a project and load it as the group address table
+	 */
+	static File install(int gaCount,String dpts[]) throws IOException
+	{
+		File f=create(gaCount,dpts);
+		use(f);
+		GroupAddressManager.load();
+		return f;
+	}
+
+	static void use(File projectFile)
+	{
+		// The import is chatty, and logging is not what we want to measure
+		Logger.getLogger("").setLevel(Level.WARNING);
+		System.setProperty("knx2mqtt.knx.ets4projectfile",projectFile.getPath());
+	}
+
+	static void delete(File projectFile)
+	{
+		new File(projectFile.getPath()+".cache").delete();
+		projectFile.delete();
+		projectFile.getParentFile().delete();
+	}
+}
@@ -0,0 +1,89 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+import tuwien.auto.calimero.exception.*;
+
+/**
+ * Converting received ASDUs, per DPT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class TranslateBenchmark
+{
+	@Param({ "1.001", "5.001", "5.010", "7.001", "9.001", "12.001", "13.001", "14.019", "16.000", "20.102" })
+	String dpt;
+
+	private File projectFile;
+	private GroupAddressInfo gai;
+	private byte[] asdu;
+	private long now;
+
+	private static byte[] sampleASDU(String dpt)
+	{
+		switch(dpt.substring(0,dpt.indexOf('.')))
+		{
+			case "1":
+				return new byte[]{ 1 };
+			case "5":
+			case "20":
+				return new byte[]{ (byte)0x80 };
+			case "7":
+				return new byte[]{ 0x12, 0x34 };
+			case "9":
+				return new byte[]{ 0x0c, 0x1a };
+			case "12":
+			case "13":
+				return new byte[]{ (byte)0xff, (byte)0xff, (byte)0xfe, 0x00 };
+			case "14":
+				int bits=Float.floatToIntBits(230.5f);
+				return new byte[]{ (byte)(bits>>24), (byte)(bits>>16), (byte)(bits>>8), (byte)bits };
+			case "16":
+				byte[] asdu=new byte[14];
+				byte[] text="Hello KNX".getBytes(StandardCharsets.US_ASCII);
+				System.arraycopy(text,0,asdu,0,text.length);
+				return asdu;
+		}
+		throw new IllegalArgumentException("No sample ASDU for "+dpt);
+	}
+
+	@Setup
+	public void setup() throws IOException
+	{
+		String dpts[]=SyntheticProject.COMMON_DPTS;
+		projectFile=SyntheticProject.install(dpts.length,dpts);
+		for(int ix=0;ix<dpts.length;ix++)
+			if(dpts[ix].equals(dpt))
+				gai=GroupAddressManager.getGAInfoForName(SyntheticProject.name(ix));
+		asdu=sampleASDU(dpt);
+		now=System.currentTimeMillis();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		SyntheticProject.delete(projectFile);
+	}
+
+	@Benchmark
+	public boolean translateAndStoreValue() throws KNXException
+	{
+		return gai.translateAndStoreValue(asdu,0x1101,now);
+	}
+
+	@Benchmark
+	public String getTextual() throws KNXException
+	{
+		return gai.getTextutal(asdu);
+	}
+}
@@ -0,0 +1,359 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+
+/**
+ * Minimal CBOR (RFC 7049) or MessagePack writer which renders directly into a reusable
+ * byte buffer, the binary counterpart of the JsonPayloadWriter.
+ *
+ * Only what the status messages need is supported: maps of known size, strings, integers,
+ * floating point numbers and null. Integers and floating point numbers are written in
+ * their shortest exact form. Instances are not thread-safe.
+ */
+public class BinaryPayloadWriter
+{
+	private final boolean cbor;
+	private byte buf[]=new byte[128];
+	private int len;
+
+	/**
+	 * @param encoding CBOR or MSGPACK
+	 */
+	public BinaryPayloadWriter(PayloadFormat.Encoding encoding)
+	{
+		if(encoding==PayloadFormat.Encoding.JSON)
+			throw new IllegalArgumentException("Not a binary encoding: "+encoding);
+		cbor=encoding==PayloadFormat.Encoding.CBOR;
+	}
+
+	public BinaryPayloadWriter reset()
+	{
+		len=0;
+		return this;
+	}
+
+	public int length()
+	{
+		return len;
+	}
+
+	private void ensure(int extra)
+	{
+		if(len+extra>buf.length)
+			buf=Arrays.copyOf(buf,Math.max(buf.length*2,len+extra));
+	}
+
+	private void put(int b)
+	{
+		ensure(1);
+		buf[len++]=(byte)b;
+	}
+
+	private void putBE(long v,int bytes)
+	{
+		ensure(bytes);
+		for(int shift=(bytes-1)*8;shift>=0;shift-=8)
+			buf[len++]=(byte)(v>>>shift);
+	}
+
+	/*
+	 * CBOR item head: major type in the top three bits, then either the argument
+	 * itself or the size of the following argument
+	 */
+	private void cborHead(int major,long arg)
+	{
+		major<<=5;
+		if(arg<24)
+			put(major|(int)arg);
+		else if(arg<=0xff)
+		{
+			put(major|24);
+			put((int)arg);
+		}
+		else if(arg<=0xffff)
+		{
+			put(major|25);
+			putBE(arg,2);
+		}
+		else if(arg<=0xffffffffL)
+		{
+			put(major|26);
+			putBE(arg,4);
+		}
+		else
+		{
+			put(major|27);
+			putBE(arg,8);
+		}
+	}
+
+	public BinaryPayloadWriter mapHeader(int entries)
+	{
+		if(cbor)
+			cborHead(5,entries);
+		else if(entries<16)
+			put(0x80|entries);
+		else if(entries<=0xffff)
+		{
+			put(0xde);
+			putBE(entries,2);
+		}
+		else
+		{
+			put(0xdf);
+			putBE(entries,4);
+		}
+		return this;
+	}
+
+	public BinaryPayloadWriter nil()
+	{
+		put(cbor ? 0xf6 : 0xc0);
+		return this;
+	}
+
+	public BinaryPayloadWriter number(long v)
+	{
+		if(cbor)
+		{
+			// Negative integers are stored as -1-n, which is ~v
+			if(v>=0)
+				cborHead(0,v);
+			else
+				cborHead(1,~v);
+		}
+		else if(v>=0)
+		{
+			if(v<0x80)
+				put((int)v);
+			else if(v<=0xff)
+			{
+				put(0xcc);
+				put((int)v);
+			}
+			else if(v<=0xffff)
+			{
+				put(0xcd);
+				putBE(v,2);
+			}
+			else if(v<=0xffffffffL)
+			{
+				put(0xce);
+				putBE(v,4);
+			}
+			else
+			{
+				put(0xcf);
+				putBE(v,8);
+			}
+		}
+		else if(v>=-32)
+			put((int)v);
+		else if(v>=Byte.MIN_VALUE)
+		{
+			put(0xd0);
+			put((int)v);
+		}
+		else if(v>=Short.MIN_VALUE)
+		{
+			put(0xd1);
+			putBE(v,2);
+		}
+		else if(v>=Integer.MIN_VALUE)
+		{
+			put(0xd2);
+			putBE(v,4);
+		}
+		else
+		{
+			put(0xd3);
+			putBE(v,8);
+		}
+		return this;
+	}
+
+	/* Largest magnitude up to which every integer is exactly representable as a double */
+	private static final double MAX_EXACT_INTEGER=9007199254740992.0;
+
+	/**
+	 * Append a double. Integral values are written as integers, like the JsonPayloadWriter
+	 * renders them without a fractional part; otherwise single precision is used if it
+	 * represents the value exactly. NaN and infinite values are written as null, as in JSON.
+	 */
+	public BinaryPayloadWriter number(double v)
+	{
+		if(Double.isNaN(v) || Double.isInfinite(v))
+			return nil();
+		if(v==Math.rint(v) && Math.abs(v)<=MAX_EXACT_INTEGER)
+			return number((long)v);
+		float f=(float)v;
+		if(f==v)
+		{
+			put(cbor ? 0xfa : 0xca);
+			putBE(Float.floatToIntBits(f),4);
+		}
+		else
+		{
+			put(cbor ? 0xfb : 0xcb);
+			putBE(Double.doubleToLongBits(v),8);
+		}
+		return this;
+	}
+
+	private static int utf8Length(String s)
+	{
+		int n=s.length();
+		int bytes=n;
+		for(int ix=0;ix<n;ix++)
+		{
+			char ch=s.charAt(ix);
+			if(ch>=0x80)
+			{
+				if(ch<0x800)
+					bytes++;
+				else if(Character.isHighSurrogate(ch) && ix+1<n && Character.isLowSurrogate(s.charAt(ix+1)))
+				{
+					// Two chars, four bytes
+					bytes+=2;
+					ix++;
+				}
+				else
+					bytes+=2;
+			}
+		}
+		return bytes;
+	}
+
+	private void stringHeader(int bytes)
+	{
+		if(cbor)
+			cborHead(3,bytes);
+		else if(bytes<32)
+			put(0xa0|bytes);
+		else if(bytes<=0xff)
+		{
+			put(0xd9);
+			put(bytes);
+		}
+		else if(bytes<=0xffff)
+		{
+			put(0xda);
+			putBE(bytes,2);
+		}
+		else
+		{
+			put(0xdb);
+			putBE(bytes,4);
+		}
+	}
+
+	/**
+	 * Append a UTF-8 string. Unpaired surrogates are encoded as they are, like the
+	 * JsonPayloadWriter does.
+	 */
+	public BinaryPayloadWriter string(String s)
+	{
+		int bytes=utf8Length(s);
+		stringHeader(bytes);
+		ensure(bytes);
+		int n=s.length();
+		for(int ix=0;ix<n;ix++)
+		{
+			char ch=s.charAt(ix);
+			if(ch<0x80)
+				buf[len++]=(byte)ch;
+			else if(ch<0x800)
+			{
+				buf[len++]=(byte)(0xc0|(ch>>6));
+				buf[len++]=(byte)(0x80|(ch&0x3f));
+			}
+			else if(Character.isHighSurrogate(ch) && ix+1<n && Character.isLowSurrogate(s.charAt(ix+1)))
+			{
+				int cp=Character.toCodePoint(ch,s.charAt(++ix));
+				buf[len++]=(byte)(0xf0|(cp>>18));
+				buf[len++]=(byte)(0x80|((cp>>12)&0x3f));
+				buf[len++]=(byte)(0x80|((cp>>6)&0x3f));
+				buf[len++]=(byte)(0x80|(cp&0x3f));
+			}
+			else
+			{
+				buf[len++]=(byte)(0xe0|(ch>>12));
+				buf[len++]=(byte)(0x80|((ch>>6)&0x3f));
+				buf[len++]=(byte)(0x80|(ch&0x3f));
+			}
+		}
+		return this;
+	}
+
+	private static int digits(int v)
+	{
+		int n=1;
+		while(v>=10)
+		{
+			v/=10;
+			n++;
+		}
+		return n;
+	}
+
+	private void digits(int v,int n)
+	{
+		for(int ix=len+n-1;ix>=len;ix--)
+		{
+			buf[ix]=(byte)('0'+v%10);
+			v/=10;
+		}
+		len+=n;
+	}
+
+	/**
+	 * Append an individual address as the string area.line.device, without creating it first
+	 */
+	public BinaryPayloadWriter individualAddress(int src)
+	{
+		int area=src>>12,line=(src>>8)&0x0f,device=src&0xff;
+		int na=digits(area),nl=digits(line),nd=digits(device);
+		int bytes=na+nl+nd+2;
+		stringHeader(bytes);
+		ensure(bytes);
+		digits(area,na);
+		buf[len++]='.';
+		digits(line,nl);
+		buf[len++]='.';
+		digits(device,nd);
+		return this;
+	}
+
+	/**
+	 * Append a value in the representation of the ValueStore
+	 */
+	public BinaryPayloadWriter value(int type,long bits,String s)
+	{
+		switch(type)
+		{
+			case ValueStore.TYPE_LONG:
+				return number(bits);
+			case ValueStore.TYPE_DOUBLE:
+				return number(Double.longBitsToDouble(bits));
+			case ValueStore.TYPE_STRING:
+				return string(s);
+			default:
+				return nil();
+		}
+	}
+
+	/**
+	 * @return a copy of the current content. A copy is required as the MQTT client keeps
+	 * a reference to the payload until it has been sent
+	 */
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOf(buf,len);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "<"+len+" bytes "+(cbor?"CBOR":"MessagePack")+">";
+	}
+}
@@ -0,0 +1,179 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Keeps track of telegrams which were sent without waiting for their L_Data.con,
+ * and correlates the confirmations reported by the link back to them.
+ *
+ * A confirmation carries the destination and the TPDU of the request, and confirmations
+ * arrive in send order, so the oldest pending request with the same destination and TPDU
+ * is the one being confirmed. The number of unconfirmed requests is limited by a window;
+ * requests which aren't confirmed within the timeout are counted as failed and free their
+ * window slot. They are kept for a while longer, so a late confirmation is recognized as
+ * theirs, and not credited to a later request.
+ *
+ * The latency of positive confirmations is recorded in latency/knx_confirm, negative and
+ * missing confirmations are counted in knx/confirm_failed.
+ */
+public class ConfirmationTracker
+{
+	private static final Logger L=Logger.getLogger(ConfirmationTracker.class.getName());
+
+	private static class Pending
+	{
+		final byte tpdu[];
+		final String description;
+		final long sendTime;
+		/* Set when the request timed out; it then only waits for a late confirmation */
+		boolean expired;
+
+		Pending(byte tpdu[],String description,long sendTime)
+		{
+			this.tpdu=tpdu;
+			this.description=description;
+			this.sendTime=sendTime;
+		}
+	}
+
+	/* How long expired requests are kept to catch late confirmations, in multiples of the timeout */
+	private static final int LATE_CONFIRMATION_FACTOR=10;
+
+	private static final Metrics.Histogram confirmLatencyMetric=Metrics.histogram("latency/knx_confirm","us");
+	private static final Metrics.Counter confirmFailedMetric=Metrics.counter("knx/confirm_failed");
+
+	private final Map<Integer,ArrayDeque<Pending>> byDestination=new HashMap<>();
+	private final Semaphore window;
+	private final long timeout;
+
+	public ConfirmationTracker(int windowSize,long timeout)
+	{
+		window=new Semaphore(windowSize);
+		this.timeout=timeout;
+	}
+
+	/**
+	 * Wait for a free slot in the send window
+	 */
+	public void acquire() throws InterruptedException
+	{
+		while(!window.tryAcquire(timeout,TimeUnit.MILLISECONDS))
+			expire();
+	}
+
+	/**
+	 * Record a request which was just handed to the link
+	 */
+	public synchronized void sent(int destination,byte tpdu[],String description)
+	{
+		Integer k=Integer.valueOf(destination);
+		ArrayDeque<Pending> q=byDestination.get(k);
+		if(q==null)
+			byDestination.put(k,q=new ArrayDeque<>());
+		q.add(new Pending(tpdu,description,System.nanoTime()));
+	}
+
+	/**
+	 * The link refused the request recorded last for this destination, forget about it.
+	 * It's counted as a send error by the caller
+	 */
+	public synchronized void sendFailed(int destination)
+	{
+		ArrayDeque<Pending> q=byDestination.get(Integer.valueOf(destination));
+		if(q==null || q.pollLast()==null)
+			return;
+		if(q.isEmpty())
+			byDestination.remove(Integer.valueOf(destination));
+		window.release();
+	}
+
+	/**
+	 * Called for each L_Data.con from the link
+	 */
+	public void confirmation(int destination,byte tpdu[],boolean positive)
+	{
+		Pending p=null;
+		long latency;
+		synchronized(this)
+		{
+			ArrayDeque<Pending> q=byDestination.get(Integer.valueOf(destination));
+			if(q==null)
+				return; // Not ours, e.g. confirmation of a blocking send
+			for(Iterator<Pending> it=q.iterator();it.hasNext();)
+			{
+				Pending candidate=it.next();
+				if(Arrays.equals(candidate.tpdu,tpdu))
+				{
+					p=candidate;
+					it.remove();
+					break;
+				}
+			}
+			if(p==null)
+				return;
+			if(q.isEmpty())
+				byDestination.remove(Integer.valueOf(destination));
+			latency=(System.nanoTime()-p.sendTime)/1000;
+			if(p.expired)
+			{
+				// Already counted as failed, and its window slot was released
+				L.fine("Late confirmation for "+p.description+" after "+latency+"us");
+				return;
+			}
+		}
+		window.release();
+		if(positive)
+		{
+			confirmLatencyMetric.record(latency);
+			if(L.isLoggable(Level.FINE))
+				L.fine("Confirmed "+p.description+" after "+latency+"us");
+		}
+		else
+		{
+			confirmFailedMetric.inc();
+			L.warning("Negative confirmation for "+p.description+" after "+latency+"us");
+		}
+	}
+
+	/**
+	 * Give up on requests which have been waiting longer than the timeout, and forget
+	 * about expired ones which didn't even get a late confirmation
+	 */
+	public void expire()
+	{
+		long now=System.nanoTime();
+		long limit=now-timeout*1000000;
+		long forgetLimit=now-timeout*1000000*LATE_CONFIRMATION_FACTOR;
+		int expired=0;
+		synchronized(this)
+		{
+			for(Iterator<ArrayDeque<Pending>> it=byDestination.values().iterator();it.hasNext();)
+			{
+				ArrayDeque<Pending> q=it.next();
+				for(Iterator<Pending> pit=q.iterator();pit.hasNext();)
+				{
+					Pending p=pit.next();
+					if(p.sendTime-limit>=0)
+						break; // Requests are in send order, all further ones are younger
+					if(!p.expired)
+					{
+						L.warning("No confirmation for "+p.description+" within "+timeout+"ms");
+						p.expired=true;
+						expired++;
+					}
+					if(p.sendTime-forgetLimit<0)
+						pit.remove();
+				}
+				if(q.isEmpty())
+					it.remove();
+			}
+		}
+		if(expired>0)
+		{
+			confirmFailedMetric.add(expired);
+			window.release(expired);
+		}
+	}
+}
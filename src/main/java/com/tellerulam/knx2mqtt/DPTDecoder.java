@@ -0,0 +1,366 @@
+package com.tellerulam.knx2mqtt;
+
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * Stateless decoders which convert the ASDU of the common DPT main groups directly
+ * into primitive values, without going through the string formatting of the
+ * Calimero translators. DPTs not covered here are left to Calimero.
+ *
+ * The conversions mirror what the Calimero 2.2.1 translators produce, including
+ * the scaling of 5.001, 5.003, 7.003 and 7.004, with one deliberate difference:
+ * 2-byte floats (9.x) are decoded to the decimal they encode, e.g. 18.4, where
+ * Calimero's computation yields 18.400000000000002. The textual representation
+ * still comes from Calimero. Strings (16.x) are always returned as strings, even
+ * if they happen to look like a number.
+ *
+ * Each kind of value has its own abstract subclass, so a decoder can only be
+ * asked for the kind of value it produces.
+ */
+public abstract class DPTDecoder
+{
+	public static final int TYPE_LONG=ValueStore.TYPE_LONG;
+	public static final int TYPE_DOUBLE=ValueStore.TYPE_DOUBLE;
+	public static final int TYPE_STRING=ValueStore.TYPE_STRING;
+
+	/** The kind of value this decoder produces, one of the TYPE_ constants, which match those of the ValueStore */
+	final int type;
+	/** Minimum ASDU length this decoder requires */
+	private final int size;
+
+	private DPTDecoder(int type,int size)
+	{
+		this.type=type;
+		this.size=size;
+	}
+
+	boolean canDecode(byte asdu[])
+	{
+		return asdu.length>=size;
+	}
+
+	/**
+	 * Decode and store a value in the ValueStore
+	 *
+	 * @return true if the value changed
+	 */
+	abstract boolean decodeAndStore(int slot,byte asdu[],int src,long now);
+
+	/**
+	 * Decode a value from the state file into the ValueStore
+	 */
+	abstract void decodeAndRestore(int slot,byte asdu[],int src,long updateTime,long changeTime);
+
+	abstract static class LongDecoder extends DPTDecoder
+	{
+		LongDecoder(int size)
+		{
+			super(TYPE_LONG,size);
+		}
+
+		abstract long decodeLong(byte asdu[]);
+
+		@Override
+		boolean decodeAndStore(int slot,byte asdu[],int src,long now)
+		{
+			return ValueStore.store(slot,TYPE_LONG,decodeLong(asdu),null,asdu,src,now);
+		}
+
+		@Override
+		void decodeAndRestore(int slot,byte asdu[],int src,long updateTime,long changeTime)
+		{
+			ValueStore.restore(slot,TYPE_LONG,decodeLong(asdu),null,asdu,src,updateTime,changeTime);
+		}
+	}
+
+	abstract static class DoubleDecoder extends DPTDecoder
+	{
+		DoubleDecoder(int size)
+		{
+			super(TYPE_DOUBLE,size);
+		}
+
+		abstract double decodeDouble(byte asdu[]);
+
+		@Override
+		boolean decodeAndStore(int slot,byte asdu[],int src,long now)
+		{
+			return ValueStore.store(slot,TYPE_DOUBLE,Double.doubleToLongBits(decodeDouble(asdu)),null,asdu,src,now);
+		}
+
+		@Override
+		void decodeAndRestore(int slot,byte asdu[],int src,long updateTime,long changeTime)
+		{
+			ValueStore.restore(slot,TYPE_DOUBLE,Double.doubleToLongBits(decodeDouble(asdu)),null,asdu,src,updateTime,changeTime);
+		}
+	}
+
+	abstract static class StringDecoder extends DPTDecoder
+	{
+		StringDecoder(int size)
+		{
+			super(TYPE_STRING,size);
+		}
+
+		abstract String decodeString(byte asdu[]);
+
+		@Override
+		boolean decodeAndStore(int slot,byte asdu[],int src,long now)
+		{
+			return ValueStore.store(slot,TYPE_STRING,0,decodeString(asdu),asdu,src,now);
+		}
+
+		@Override
+		void decodeAndRestore(int slot,byte asdu[],int src,long updateTime,long changeTime)
+		{
+			ValueStore.restore(slot,TYPE_STRING,0,decodeString(asdu),asdu,src,updateTime,changeTime);
+		}
+	}
+
+	/**
+	 * @return a decoder for the given DPT (e.g. "9.001"), or null if the DPT
+	 * needs to be handled by a Calimero translator
+	 */
+	public static DPTDecoder forDPT(String dpt)
+	{
+		if(dpt==null)
+			return null;
+		int dotIndex=dpt.indexOf('.');
+		if(dotIndex<=0)
+			return null;
+		int main,sub;
+		try
+		{
+			main=Integer.parseInt(dpt.substring(0,dotIndex));
+			sub=Integer.parseInt(dpt.substring(dotIndex+1));
+		}
+		catch(NumberFormatException nfe)
+		{
+			return null;
+		}
+		switch(main)
+		{
+			case 1:
+				return BOOLEAN;
+			case 5:
+				if(sub==1)
+					return new Unsigned8Scaled(100);
+				if(sub==3)
+					return new Unsigned8Scaled(360);
+				return UNSIGNED8;
+			case 7:
+				if(sub==3)
+					return new Unsigned16Scaled(10);
+				if(sub==4)
+					return new Unsigned16Scaled(100);
+				return UNSIGNED16;
+			case 9:
+				return FLOAT16;
+			case 12:
+				return UNSIGNED32;
+			case 13:
+				return SIGNED32;
+			case 14:
+				return FLOAT32;
+			case 16:
+				return sub==0 ? STRING_ASCII : STRING_LATIN1;
+			default:
+				return null;
+		}
+	}
+
+	private static final LongDecoder BOOLEAN=new LongDecoder(1) {
+		@Override
+		long decodeLong(byte[] asdu)
+		{
+			return asdu[0]&1;
+		}
+	};
+
+	private static final LongDecoder UNSIGNED8=new LongDecoder(1) {
+		@Override
+		long decodeLong(byte[] asdu)
+		{
+			return asdu[0]&0xff;
+		}
+	};
+
+	private static class Unsigned8Scaled extends LongDecoder
+	{
+		private final int range;
+
+		Unsigned8Scaled(int range)
+		{
+			super(1);
+			this.range=range;
+		}
+
+		@Override
+		long decodeLong(byte[] asdu)
+		{
+			return Math.round((asdu[0]&0xff)*range/255.0f);
+		}
+	}
+
+	private static final LongDecoder UNSIGNED16=new LongDecoder(2) {
+		@Override
+		long decodeLong(byte[] asdu)
+		{
+			return ((asdu[0]&0xff)<<8)|(asdu[1]&0xff);
+		}
+	};
+
+	private static class Unsigned16Scaled extends LongDecoder
+	{
+		private final int factor;
+
+		Unsigned16Scaled(int factor)
+		{
+			super(2);
+			this.factor=factor;
+		}
+
+		@Override
+		long decodeLong(byte[] asdu)
+		{
+			return (((asdu[0]&0xff)<<8)|(asdu[1]&0xff))*factor;
+		}
+	}
+
+	private static final DoubleDecoder FLOAT16=new DoubleDecoder(2) {
+		@Override
+		double decodeDouble(byte[] asdu)
+		{
+			// MEEEEMMM MMMMMMMM, value is 0.01*M*2^E with M in two's complement
+			int e=(asdu[0]&0x78)>>3;
+			int m=((asdu[0]&0x07)<<8)|(asdu[1]&0xff);
+			if((asdu[0]&0x80)!=0)
+				m-=2048;
+			// Dividing the exact number of hundredths yields the same double as parsing the decimal
+			return (m<<e)/100.0;
+		}
+	};
+
+	private static final LongDecoder UNSIGNED32=new LongDecoder(4) {
+		@Override
+		long decodeLong(byte[] asdu)
+		{
+			return signed32(asdu)&0xffffffffL;
+		}
+	};
+
+	private static final LongDecoder SIGNED32=new LongDecoder(4) {
+		@Override
+		long decodeLong(byte[] asdu)
+		{
+			return signed32(asdu);
+		}
+	};
+
+	private static final DoubleDecoder FLOAT32=new DoubleDecoder(4) {
+		@Override
+		double decodeDouble(byte[] asdu)
+		{
+			float f=Float.intBitsToFloat(signed32(asdu));
+			if(Math.abs(f)<100000)
+				return shortestDouble(f);
+			// Calimero formats large values with six significant digits only. Its DecimalFormat
+			// doesn't consistently round ties to even, so the same format is used here
+			return Double.parseDouble(LARGE_FLOAT_FORMAT.get().format(f));
+		}
+	};
+
+	/* The format of DPTXlator4ByteFloat for values of 100000 and above */
+	private static final ThreadLocal<NumberFormat> LARGE_FLOAT_FORMAT=new ThreadLocal<NumberFormat>(){
+		@Override
+		protected NumberFormat initialValue()
+		{
+			NumberFormat nf=NumberFormat.getInstance(Locale.US);
+			if(nf instanceof DecimalFormat)
+				((DecimalFormat)nf).applyPattern("0.#####E0");
+			return nf;
+		}
+	};
+
+	private static final StringDecoder STRING_ASCII=new CharsetStringDecoder(StandardCharsets.US_ASCII);
+	private static final StringDecoder STRING_LATIN1=new CharsetStringDecoder(StandardCharsets.ISO_8859_1);
+
+	private static class CharsetStringDecoder extends StringDecoder
+	{
+		private final Charset charset;
+
+		CharsetStringDecoder(Charset charset)
+		{
+			super(0);
+			this.charset=charset;
+		}
+
+		@Override
+		String decodeString(byte[] asdu)
+		{
+			// The string is terminated by the first NUL, or fills all of the 14 bytes
+			int len=0;
+			while(len<asdu.length && asdu[len]!=0)
+				len++;
+			return new String(asdu,0,len,charset);
+		}
+	}
+
+	private static int signed32(byte asdu[])
+	{
+		return ((asdu[0]&0xff)<<24)|((asdu[1]&0xff)<<16)|((asdu[2]&0xff)<<8)|(asdu[3]&0xff);
+	}
+
+	/* Only the powers of ten which are exact doubles */
+	private static final double POW10[]=new double[23];
+	static
+	{
+		POW10[0]=1;
+		for(int ix=1;ix<POW10.length;ix++)
+			POW10[ix]=POW10[ix-1]*10;
+	}
+
+	/*
+	 * Widen a float to the double with the fewest decimal digits which still maps back
+	 * to the same float, i.e. 21.3f becomes 21.3 and not 21.299999237060547. This is
+	 * the same as Double.valueOf(Float.toString(f)), without creating the string unless the
+	 * value is too small to be scaled exactly.
+	 */
+	static double shortestDouble(float f)
+	{
+		double v=f;
+		if(v==0 || Double.isNaN(v) || Double.isInfinite(v))
+			return v;
+		for(int digits=1;digits<=9;digits++)
+		{
+			double candidate=roundToDigits(v,digits);
+			if(Double.isNaN(candidate))
+				break;
+			if((float)candidate==f)
+				return candidate;
+		}
+		return Double.parseDouble(Float.toString(f));
+	}
+
+	/*
+	 * Round to the given number of significant digits, ties to even. NaN if that would
+	 * require scaling by more than the exact powers of ten
+	 */
+	static double roundToDigits(double v,int digits)
+	{
+		if(v==0 || Double.isNaN(v) || Double.isInfinite(v))
+			return v;
+		double abs=Math.abs(v);
+		int scale=digits-1-(int)Math.floor(Math.log10(abs));
+		double rounded;
+		if(scale>=0 && scale<POW10.length)
+			rounded=Math.rint(abs*POW10[scale])/POW10[scale];
+		else if(scale<0 && -scale<POW10.length)
+			rounded=Math.rint(abs/POW10[-scale])*POW10[-scale];
+		else
+			return Double.NaN;
+		return v<0 ? -rounded : rounded;
+	}
+}
@@ -0,0 +1,52 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+
+/**
+ * Recognizes telegrams which arrive a second time via another KNX link, e.g. when
+ * both a tunnel into a line and a router on the backbone see them.
+ *
+ * For every group address, the last telegram is remembered together with the link
+ * it arrived on. A telegram with the same source, service and ASDU arriving via a
+ * different link within the window is a duplicate. The same telegram arriving again
+ * via the same link is a new one (someone pressed the button twice), so a single
+ * link never loses telegrams.
+ *
+ * Not thread-safe, it's only used within the merged ingest.
+ */
+public class DuplicateFilter
+{
+	private final long window;
+	private final byte link[]=new byte[65536];
+	private final int src[]=new int[65536];
+	private final boolean response[]=new boolean[65536];
+	private final byte asdu[][]=new byte[65536][];
+	private final long time[]=new long[65536];
+
+	/**
+	 * @param window time in milliseconds within which a telegram is considered the same
+	 */
+	public DuplicateFilter(long window)
+	{
+		this.window=window*1000000;
+	}
+
+	/**
+	 * @param linkIndex the link the telegram arrived on
+	 * @param now System.nanoTime()
+	 * @return true if the telegram was already seen via another link
+	 */
+	boolean isDuplicate(int linkIndex,int srcAddress,int destAddress,byte data[],boolean isResponse,long now)
+	{
+		byte last[]=asdu[destAddress];
+		if(last!=null && link[destAddress]!=linkIndex && src[destAddress]==srcAddress && response[destAddress]==isResponse
+			&& now-time[destAddress]<window && Arrays.equals(last,data))
+			return true;
+		link[destAddress]=(byte)linkIndex;
+		src[destAddress]=srcAddress;
+		response[destAddress]=isResponse;
+		asdu[destAddress]=data;
+		time[destAddress]=now;
+		return false;
+	}
+}
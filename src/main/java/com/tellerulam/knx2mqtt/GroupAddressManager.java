@@ -1,13 +1,19 @@
-
 package com.tellerulam.knx2mqtt;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.util.regex.*;
 import java.util.zip.*;
 
 import javax.xml.parsers.*;
+import javax.xml.stream.*;
 
 import org.w3c.dom.*;
 import org.xml.sax.*;
@@ -21,38 +27,113 @@ public class GroupAddressManager
 {
 	private static final Logger L = Logger.getLogger(GroupAddressManager.class.getName());
 
+	/**
+	 * Lookup by the raw 16-bit group address. This is what the telegram
+	 * processing uses, as it neither allocates nor hashes.
+	 */
+	public static GroupAddressInfo getGAInfoForAddress(GroupAddress address)
+	{
+		return table.byAddress[address.getRawAddress()];
+	}
+
+	static GroupAddressInfo getGAInfoForRawAddress(int rawAddress)
+	{
+		return table.byAddress[rawAddress];
+	}
+
 	public static GroupAddressInfo getGAInfoForAddress(String address)
 	{
-		return gaTable.get(address);
+		return table.byAddressString.get(address);
 	}
 
 	public static GroupAddressInfo getGAInfoForName(String name)
 	{
-		return gaByName.get(name);
+		return table.byName.get(name);
 	}
 
-	public static class GroupAddressInfo implements Serializable
+	/**
+	 * @return all known group addresses, ordered by address
+	 */
+	public static List<GroupAddressInfo> getAllGAInfos()
 	{
-		private static final long serialVersionUID = 1;
+		Table t = table;
+		List<GroupAddressInfo> l = new ArrayList<>(t.byName.size());
+		for(GroupAddressInfo gai: t.byAddress)
+			if(gai != null)
+				l.add(gai);
+		return l;
+	}
 
+	/**
+	 * @return the group addresses whose publish policy has a heartbeat rule. The list
+	 * must not be modified
+	 */
+	static List<GroupAddressInfo> getHeartbeatGAInfos()
+	{
+		return table.heartbeats;
+	}
+
+	public static class GroupAddressInfo
+	{
 		final String name;
 		final String address;
+		final int rawAddress;
 		String dpt;
 		/*
-		 * We do not want this serialized, but recreate it explicitely on
-		 * loading
+		 * Whether a communication object with the read flag set is connected, i.e.
+		 * a read request will be answered. True if the project doesn't tell.
+		 */
+		boolean readable = true;
+		/*
+		 * Only name, address, dpt and readable are stored in the project cache, everything
+		 * else is derived from them when loading.
+		 *
+		 * Calimero translators are mutable, so each path gets its own instance:
+		 * xlator is only used under the ingest lock (by the KNX listeners, the
+		 * publish policy timers and cached reads), writeXlator only by the write
+		 * path, under the lock of this object. Ingest and writes thus never contend.
+		 * Both are created on first use, as most group addresses of a large project
+		 * are never seen during a run.
+		 */
+		private DPTXlator xlator;
+		private DPTXlator writeXlator;
+		/*
+		 * Direct decoder for common DPTs, null if we need to go through the
+		 * translator
+		 */
+		private DPTDecoder decoder;
+		/*
+		 * Pre-rendered parts of the status messages
+		 */
+		String statusTopic;
+		byte[] dptFragment;
+		/*
+		 * The runtime state (value, source, timestamps) is held in the ValueStore,
+		 * in the slot given by the raw address, and kept across restarts by the
+		 * StateStore.
+		 */
+		/*
+		 * Set while a read request we sent is awaiting its response, 0 otherwise
+		 */
+		volatile long readRequestTimestamp;
+		/*
+		 * Publish filtering, null if every value is published
+		 */
+		PublishPolicy publishPolicy;
+		/*
+		 * Encoding of the status messages
 		 */
-		transient DPTXlator xlator;
+		PayloadFormat payloadFormat;
 		/*
-		 * Transient state, also not serialized
+		 * Bus priority for writes and reads we send
 		 */
-		transient Object lastValue;
-		transient long lastValueTimestamp;
+		Priority priority;
 
-		private GroupAddressInfo(String name, String address)
+		private GroupAddressInfo(String name, String address, int rawAddress)
 		{
 			this.name = name;
 			this.address = address;
+			this.rawAddress = rawAddress;
 		}
 
 		@Override
@@ -61,77 +142,428 @@ public class GroupAddressManager
 			return "{" + name + "|" + dpt + "}";
 		}
 
-		void createTranslator() throws KNXException
+		/*
+		 * Set up everything which is derived from the (persistent) name and dpt
+		 */
+		void init()
+		{
+			statusTopic = MQTTHandler.getTopicPrefix() + "status/" + name;
+			JsonPayloadWriter w = new JsonPayloadWriter().raw(",\"knx_dpt\":");
+			dptFragment = (dpt != null ? w.string(dpt) : w.raw("null")).toByteArray();
+			publishPolicy = PublishPolicy.forName(name);
+			payloadFormat = PayloadFormat.forName(name);
+			priority = GroupWriteQueue.priorityForName(name);
+		}
+
+		/*
+		 * Start with the state kept in the state file, if any
+		 */
+		void initState()
+		{
+			ValueStore.clear(rawAddress);
+			StateStore.restore(this);
+		}
+
+		/*
+		 * Set the runtime state from the state file. The value is only decoded if that's possible
+		 * without a translator, as most group addresses are never used during a run; otherwise,
+		 * changes are detected by comparing the ASDU
+		 */
+		void restoreState(byte[] asdu, int src, long updateTime, long changeTime)
+		{
+			DPTDecoder d = DPTDecoder.forDPT(dpt);
+			if(d == null || !d.canDecode(asdu))
+				ValueStore.restore(rawAddress, ValueStore.TYPE_NONE, 0, null, asdu, src, updateTime, changeTime);
+			else
+				d.decodeAndRestore(rawAddress, asdu, src, updateTime, changeTime);
+		}
+
+		private DPTXlator createTranslator() throws KNXException
 		{
 			try
 			{
-				xlator = TranslatorTypes.createTranslator(0, dpt);
+				return TranslatorTypes.createTranslator(0, dpt);
 			}
 			catch(KNXException e)
 			{
 				L.warning("WARNING! Unable to create translator for DPT " + dpt + " of " + name + ", using 1-byte-value as a fallback.");
-				xlator = TranslatorTypes.createTranslator(0, "5.005");
+				return TranslatorTypes.createTranslator(0, "5.005");
 			}
-			xlator.setAppendUnit(false);
 		}
 
-		private Object translate(byte[] asdu)
+		private DPTXlator getXlator() throws KNXException
 		{
-			xlator.setData(asdu);
-			if(xlator instanceof DPTXlatorBoolean)
+			if(xlator == null)
 			{
-				if(((DPTXlatorBoolean)xlator).getValueBoolean())
-					return Integer.valueOf(1);
-				else
-					return Integer.valueOf(0);
+				DPTXlator x = createTranslator();
+				// The ingest translator is mostly used for the textual representation
+				x.setAppendUnit(true);
+				decoder = DPTDecoder.forDPT(x.getType().getID());
+				xlator = x;
 			}
-			// TODO there must be a less lame method to do this
+			return xlator;
+		}
+
+		/**
+		 * Encode a value for a group write into an APDU. Booleans are accepted
+		 * as "0" and "1" in addition to their textual representations.
+		 */
+		synchronized byte[] encodeGroupWrite(String val) throws KNXException
+		{
+			DPTXlator writeXlator = getWriteXlator();
+			if(writeXlator instanceof DPTXlatorBoolean && ("0".equals(val) || "1".equals(val)))
+				((DPTXlatorBoolean)writeXlator).setValue("1".equals(val));
+			else
+				writeXlator.setValue(val);
+			return KNXConnector.createGroupAPDU(KNXConnector.GROUP_WRITE, writeXlator);
+		}
+
+		private DPTXlator getWriteXlator() throws KNXException
+		{
+			if(writeXlator == null)
+				writeXlator = createTranslator();
+			return writeXlator;
+		}
+
+		/**
+		 * Textual representation of the last received value, for use outside of the KNX listener thread
+		 */
+		synchronized String getCachedTextual() throws KNXException
+		{
+			DPTXlator writeXlator = getWriteXlator();
+			writeXlator.setData(ValueStore.getAsdu(rawAddress));
+			writeXlator.setAppendUnit(true);
+			String textual = writeXlator.getValue();
+			writeXlator.setAppendUnit(false);
+			return textual;
+		}
+
+		/**
+		 * Translate a received ASDU and store the value in the ValueStore
+		 *
+		 * @return true if the value changed
+		 */
+		public boolean translateAndStoreValue(byte[] asdu, int src, long now) throws KNXException
+		{
+			boolean changed = translateAndStore(asdu, src, now);
+			StateStore.store(this);
+			return changed;
+		}
+
+		private boolean translateAndStore(byte[] asdu, int src, long now) throws KNXException
+		{
+			if(decoder != null && decoder.canDecode(asdu))
+				return decoder.decodeAndStore(rawAddress, asdu, src, now);
+			// Fall back to the Calimero translator for everything else
+			DPTXlator xlator = getXlator();
+			xlator.setData(asdu);
+			if(xlator instanceof DPTXlatorBoolean)
+				return ValueStore.store(rawAddress, ValueStore.TYPE_LONG, ((DPTXlatorBoolean)xlator).getValueBoolean() ? 1 : 0, null, asdu, src, now);
+			xlator.setAppendUnit(false);
 			String strVal = xlator.getValue();
+			xlator.setAppendUnit(true);
 			try
 			{
-				return Integer.valueOf(strVal);
+				return ValueStore.store(rawAddress, ValueStore.TYPE_LONG, Integer.parseInt(strVal), null, asdu, src, now);
 			}
 			catch(NumberFormatException nfe)
 			{
 				try
 				{
-					return Double.valueOf(strVal);
+					return ValueStore.store(rawAddress, ValueStore.TYPE_DOUBLE, Double.doubleToLongBits(Double.parseDouble(strVal)), null, asdu, src, now);
 				}
 				catch(NumberFormatException nfe2)
 				{
-					return strVal;
+					return ValueStore.store(rawAddress, ValueStore.TYPE_STRING, 0, strVal, asdu, src, now);
 				}
 			}
 		}
 
-		public Object translateAndStoreValue(byte[] asdu,long now)
+		/**
+		 * Apply the publish policy to the value just stored. If this returns true,
+		 * the value is considered published. With force, the policy is bypassed.
+		 */
+		public boolean shouldPublish(long now, boolean force)
 		{
-			Object newVal=translate(asdu);
-			if(!newVal.equals(lastValue))
+			if(!force && publishPolicy != null && !publishPolicy.shouldPublish(rawAddress, now))
 			{
-				lastValue=newVal;
-				lastValueTimestamp=now;
+				publishPolicy.deferIfRateLimited(this, now);
+				return false;
 			}
-			return newVal;
+			ValueStore.markPublished(rawAddress, now);
+			return true;
 		}
 
-		public String getTextutal()
+		/**
+		 * Publish the value in the ValueStore, for publishes not caused by a telegram.
+		 * The value keeps the time it was received as its timestamp.
+		 * Only called with the ingest lock held, as this uses the ingest translator.
+		 */
+		void publishStoredValue()
 		{
-			String textual;
-			xlator.setAppendUnit(true);
-			textual = xlator.getValue();
-			xlator.setAppendUnit(false);
-			return textual;
+			String textual = null;
+			try
+			{
+				textual = getTextutal(ValueStore.getAsdu(rawAddress));
+			}
+			catch(KNXException e)
+			{
+				L.log(Level.WARNING, "Unable to translate the stored value of " + name, e);
+			}
+			MQTTHandler.publish(this, textual, ValueStore.getLastUpdate(rawAddress));
+		}
+
+		public String getTextutal(byte[] asdu) throws KNXException
+		{
+			DPTXlator xlator = getXlator();
+			xlator.setData(asdu);
+			return xlator.getValue();
 		}
 	}
 
-	static private Map<String, GroupAddressInfo> gaTable = new HashMap<>();
-	static private Map<String, GroupAddressInfo> gaByName = new HashMap<>();
+	/*
+	 * A group address table. It's filled by the loader and never modified once it has
+	 * been published, so the lookups need no locking. A reload builds a new table and
+	 * swaps it in.
+	 *
+	 * The address-indexed array is the primary lookup structure. The String-keyed maps are
+	 * used for lookups by name and for configuration and diagnostics. The heartbeat list
+	 * is filled once all entries have been initialized
+	 */
+	private static class Table
+	{
+		final GroupAddressInfo byAddress[] = new GroupAddressInfo[65536];
+		final Map<String, GroupAddressInfo> byAddressString = new HashMap<>();
+		final Map<String, GroupAddressInfo> byName = new HashMap<>();
+		final List<GroupAddressInfo> heartbeats = new ArrayList<>();
+
+		void put(GroupAddressInfo gai)
+		{
+			byAddress[gai.rawAddress] = gai;
+			byAddressString.put(gai.address, gai);
+			byName.put(gai.name, gai);
+		}
+	}
+
+	private static volatile Table table = new Table();
+	/*
+	 * The table currently being filled, only used by the loading thread
+	 */
+	private static Table loading;
+
+	private static void putGAInfo(GroupAddressInfo gai)
+	{
+		loading.put(gai);
+	}
+
+	/**
+	 * Load the group address table from the ETS4/ETS5 project file and/or the
+	 * ETS4 Group Address Export. Exits if they can't be read.
+	 */
+	static void load()
+	{
+		Table t = new Table();
+		try
+		{
+			readTables(t);
+		}
+		catch(Exception e)
+		{
+			L.log(Level.SEVERE, e.getMessage(), e.getCause() != null ? e.getCause() : e);
+			System.exit(1);
+		}
+		for(GroupAddressInfo gai: t.byAddressString.values())
+		{
+			gai.init();
+			gai.initState();
+		}
+		collectHeartbeats(t);
+		table = t;
+	}
+
+	private static synchronized void readTables(Table t) throws Exception
+	{
+		loading = t;
+		try
+		{
+			readETS4Project();
+			readGroupAddressTable();
+		}
+		finally
+		{
+			loading = null;
+		}
+	}
+
+	/**
+	 * Reload the group address table. The new table is built in the background; group
+	 * addresses whose name and DPT didn't change keep their GroupAddressInfo and thus their
+	 * state. Changed group addresses start without state, as their old state may not even
+	 * be decodable with the new DPT, and the state of removed ones is dropped. If the new
+	 * table can't be read, the current one is kept.
+	 *
+	 * The new table and the differences are worked out without holding the ingest lock. Added
+	 * group addresses get their state before the swap, as nothing else writes to their slots
+	 * until then, and removed ones lose it after the swap, once nothing else writes to them any
+	 * more. Only the state of changed group addresses is cleared together with the swap, so no
+	 * telegram is stored with the old DPT after the clear or with the new one before it.
+	 */
+	static void reload()
+	{
+		long startTime = System.currentTimeMillis();
+		Table t = new Table();
+		try
+		{
+			readTables(t);
+		}
+		catch(Exception e)
+		{
+			L.log(Level.WARNING, "Reloading the group address table failed, keeping the current one. " + e.getMessage(), e.getCause() != null ? e.getCause() : e);
+			return;
+		}
+		Table current = table;
+		List<GroupAddressInfo> added = new ArrayList<>();
+		List<GroupAddressInfo> changed = new ArrayList<>();
+		int unchanged = 0;
+		for(GroupAddressInfo gai: new ArrayList<>(t.byAddressString.values()))
+		{
+			GroupAddressInfo prev = current.byAddress[gai.rawAddress];
+			if(prev != null && prev.name.equals(gai.name) && Objects.equals(prev.dpt, gai.dpt))
+			{
+				prev.readable = gai.readable;
+				t.put(prev);
+				unchanged++;
+				continue;
+			}
+			gai.init();
+			if(prev == null)
+			{
+				added.add(gai);
+				L.fine("Reload: added " + gai.address + " " + gai);
+			}
+			else
+			{
+				changed.add(gai);
+				L.fine("Reload: changed " + gai.address + " from " + prev + " to " + gai);
+			}
+		}
+		collectHeartbeats(t);
+		List<Integer> removed = new ArrayList<>();
+		for(int ix = 0; ix < current.byAddress.length; ix++)
+			if(current.byAddress[ix] != null && t.byAddress[ix] == null)
+				removed.add(Integer.valueOf(ix));
+		// The ValueStore is only written under the ingest lock, so it's taken briefly for each group address
+		for(GroupAddressInfo gai: added)
+		{
+			synchronized(KNXConnector.ingestLock)
+			{
+				gai.initState();
+			}
+		}
+		synchronized(KNXConnector.ingestLock)
+		{
+			for(GroupAddressInfo gai: changed)
+				clearState(gai.rawAddress);
+			table = t;
+		}
+		for(Integer rawAddress: removed)
+		{
+			synchronized(KNXConnector.ingestLock)
+			{
+				clearState(rawAddress.intValue());
+			}
+		}
+		L.info("Reloaded group address table in " + (System.currentTimeMillis() - startTime) + "ms: " + added.size() + " added, " + removed.size() + " removed, " + changed.size() + " changed, " + unchanged + " unchanged");
+	}
+
+	private static void collectHeartbeats(Table t)
+	{
+		for(GroupAddressInfo gai: t.byAddressString.values())
+			if(gai.publishPolicy != null && gai.publishPolicy.hasHeartbeat())
+				t.heartbeats.add(gai);
+	}
+
+	private static void clearState(int rawAddress)
+	{
+		ValueStore.clear(rawAddress);
+		StateStore.clear(rawAddress);
+	}
+
+	/*
+	 * Editors and copies often write a file in several steps, so wait until it
+	 * has settled for this long before reloading
+	 */
+	private static final long RELOAD_SETTLE_TIME = 2000;
+
+	/**
+	 * If knx.reload is set, start a thread watching the project file and group address
+	 * export for changes, and reload the table when they change
+	 */
+	static void startReloadWatcher()
+	{
+		if(!Boolean.getBoolean("knx2mqtt.knx.reload"))
+			return;
+		final Set<Path> watched = new HashSet<>();
+		for(String f: new String[]{ getProjectFilename(), System.getProperty("knx2mqtt.knx.groupaddresstable") })
+			if(f != null)
+				watched.add(Paths.get(f).toAbsolutePath());
+		if(watched.isEmpty())
+		{
+			L.warning("knx.reload is set, but there is no group address table to watch");
+			return;
+		}
+		Thread t = new Thread("Group Address Table Reload Thread") {
+			@Override
+			public void run()
+			{
+				try(WatchService ws = FileSystems.getDefault().newWatchService())
+				{
+					Set<Path> dirs = new HashSet<>();
+					for(Path p: watched)
+						if(dirs.add(p.getParent()))
+							p.getParent().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+					L.info("Watching " + watched + " for changes");
+					for(;;)
+					{
+						WatchKey key = ws.take();
+						boolean relevant = false;
+						do
+						{
+							Path dir = (Path)key.watchable();
+							for(WatchEvent<?> ev: key.pollEvents())
+							{
+								if(ev.kind() == StandardWatchEventKinds.OVERFLOW || watched.contains(dir.resolve((Path)ev.context())))
+									relevant = true;
+							}
+							key.reset();
+							key = ws.poll(RELOAD_SETTLE_TIME, TimeUnit.MILLISECONDS);
+						}
+						while(key != null);
+						if(relevant)
+						{
+							L.info("Group address table changed, reloading");
+							reload();
+						}
+					}
+				}
+				catch(InterruptedException e)
+				{
+					/* Ignore, we're done */
+				}
+				catch(IOException e)
+				{
+					L.log(Level.WARNING, "Unable to watch " + watched + " for changes, reloading disabled", e);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
 
 	/**
-	 * Load an ETS4 Group Address Export
+	 * Read an ETS4 Group Address Export
 	 */
-	static void loadGroupAddressTable()
+	private static void readGroupAddressTable() throws IOException
 	{
 		String gaFile = System.getProperty("knx2mqtt.knx.groupaddresstable");
 		if(gaFile == null)
@@ -147,16 +579,15 @@ public class GroupAddressManager
 			Document doc = docBuilder.parse(new File(gaFile));
 			NodeList root = doc.getElementsByTagName("GroupAddress-Export");
 			iterateGAElement(root.item(0), "");
-			L.info("Read " + gaTable.size() + " Group Address entries from " + gaFile);
+			L.info("Read " + loading.byAddressString.size() + " Group Address entries from " + gaFile);
 		}
 		catch(Exception e)
 		{
-			L.log(Level.SEVERE, "Unable to parse Group Address table file " + gaFile, e);
-			System.exit(1);
+			throw new IOException("Unable to parse Group Address table file " + gaFile, e);
 		}
 	}
 
-	private static void iterateGAElement(Node n, String prefix)
+	private static void iterateGAElement(Node n, String prefix) throws KNXFormatException
 	{
 		NodeList nlist = n.getChildNodes();
 		for(int ix = 0; ix < nlist.getLength(); ix++)
@@ -171,22 +602,139 @@ public class GroupAddressManager
 			{
 				String name = prefix + ((Element)sn).getAttribute("Name");
 				String addr = ((Element)sn).getAttribute("Address");
-				GroupAddressInfo gai = new GroupAddressInfo(name, addr);
-				gaTable.put(addr, gai);
-				gaByName.put(name, gai);
+				putGAInfo(new GroupAddressInfo(name, addr, new GroupAddress(addr).getRawAddress()));
 			}
 		}
 	}
 
+	/*
+	 * Project cache file format, all numbers big endian:
+	 *
+	 *   magic          4 bytes "K2MC"
+	 *   format version 4 bytes
+	 *   project hash   32 bytes SHA-256 of the project file
+	 *   entry count    4 bytes
+	 *   entries        raw group address (2 bytes), name length (2 bytes), name (UTF-8),
+	 *                  dpt length (1 byte), dpt (ASCII), flags (1 byte, CACHE_FLAG_*)
+	 *
+	 * The cache is only used if the hash matches the current project file, so it's never
+	 * trusted after the project file was replaced, whatever its timestamp.
+	 */
+	private static final int CACHE_MAGIC = 0x4B324D43;
+	private static final int CACHE_VERSION = 2;
+	private static final int CACHE_FLAG_READABLE = 1;
+
+	private static byte[] hashFile(File f) throws IOException, NoSuchAlgorithmException
+	{
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		try(FileChannel fc = new FileInputStream(f).getChannel())
+		{
+			md.update(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+		}
+		return md.digest();
+	}
+
 	/**
-	 * Load an ETS4 or ETS5 project file
+	 * @return false if the cache does not belong to the given project file
 	 */
-	@SuppressWarnings("unchecked")
-	static void loadETS4Project()
+	private static boolean readProjectCache(File cacheFile, byte[] projectHash) throws IOException
+	{
+		try(FileChannel fc = new FileInputStream(cacheFile).getChannel())
+		{
+			MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			if(buf.getInt() != CACHE_MAGIC)
+				throw new IOException("Not a knx2mqtt project cache file");
+			int version = buf.getInt();
+			if(version != CACHE_VERSION)
+			{
+				L.info("Cache file " + cacheFile + " has format version " + version + ", expected " + CACHE_VERSION + ", ignoring it");
+				return false;
+			}
+			byte[] hash = new byte[projectHash.length];
+			buf.get(hash);
+			if(!Arrays.equals(hash, projectHash))
+			{
+				L.info("Cache file " + cacheFile + " exists, but project file has changed, ignoring it");
+				return false;
+			}
+			int count = buf.getInt();
+			List<GroupAddressInfo> entries = new ArrayList<>(count);
+			byte[] strBuf = new byte[256];
+			for(int ix = 0; ix < count; ix++)
+			{
+				int rawAddress = buf.getShort() & 0xffff;
+				int nameLength = buf.getShort() & 0xffff;
+				if(nameLength > strBuf.length)
+					strBuf = new byte[nameLength];
+				buf.get(strBuf, 0, nameLength);
+				String name = new String(strBuf, 0, nameLength, StandardCharsets.UTF_8);
+				int dptLength = buf.get() & 0xff;
+				buf.get(strBuf, 0, dptLength);
+				GroupAddressInfo gai = new GroupAddressInfo(name, new GroupAddress(rawAddress).toString(), rawAddress);
+				gai.dpt = new String(strBuf, 0, dptLength, StandardCharsets.US_ASCII);
+				gai.readable = (buf.get() & CACHE_FLAG_READABLE) != 0;
+				entries.add(gai);
+			}
+			if(buf.hasRemaining())
+				throw new IOException("Trailing garbage in project cache file");
+			// Only touch the table once the whole file was read successfully
+			for(GroupAddressInfo gai: entries)
+				putGAInfo(gai);
+			return true;
+		}
+		catch(BufferUnderflowException e)
+		{
+			throw new IOException("Project cache file is truncated", e);
+		}
+	}
+
+	private static void writeProjectCache(File cacheFile, byte[] projectHash) throws IOException
+	{
+		// Write to a temporary file first, so an interrupted write never leaves a broken cache
+		File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))))
+		{
+			dos.writeInt(CACHE_MAGIC);
+			dos.writeInt(CACHE_VERSION);
+			dos.write(projectHash);
+			dos.writeInt(loading.byAddressString.size());
+			for(GroupAddressInfo gai: loading.byAddressString.values())
+			{
+				byte[] name = gai.name.getBytes(StandardCharsets.UTF_8);
+				byte[] dpt = gai.dpt.getBytes(StandardCharsets.US_ASCII);
+				if(name.length > 0xffff || dpt.length > 0xff)
+					throw new IOException("Group address name or DPT of " + gai.address + " too long for the cache");
+				dos.writeShort(gai.rawAddress);
+				dos.writeShort(name.length);
+				dos.write(name);
+				dos.writeByte(dpt.length);
+				dos.write(dpt);
+				dos.writeByte(gai.readable ? CACHE_FLAG_READABLE : 0);
+			}
+		}
+		if(!tmpFile.renameTo(cacheFile))
+		{
+			// Windows does not replace existing files when renaming
+			cacheFile.delete();
+			if(!tmpFile.renameTo(cacheFile))
+				throw new IOException("Unable to rename " + tmpFile + " to " + cacheFile);
+		}
+	}
+
+	private static String getProjectFilename()
 	{
 		String gaFile = System.getProperty("knx2mqtt.knx.ets5projectfile");
-		if(gaFile==null)
-			gaFile=System.getProperty("knx2mqtt.knx.ets4projectfile");
+		if(gaFile == null)
+			gaFile = System.getProperty("knx2mqtt.knx.ets4projectfile");
+		return gaFile;
+	}
+
+	/**
+	 * Read an ETS4 or ETS5 project file
+	 */
+	private static void readETS4Project() throws IOException
+	{
+		String gaFile = getProjectFilename();
 		if(gaFile == null)
 		{
 			L.config("No ETS4/ETS5 project file specified");
@@ -194,35 +742,34 @@ public class GroupAddressManager
 		}
 		File projectFile = new File(gaFile);
 		if(!projectFile.exists())
+			throw new IOException("ETS4/ETS5 project file " + gaFile + " does not exit");
+		File cacheFile = new File(gaFile + ".cache");
+		long startTime = System.currentTimeMillis();
+		byte[] projectHash;
+		try
 		{
-			L.severe("ETS4/ETS5 project file " + gaFile + " does not exit");
-			System.exit(1);
+			projectHash = hashFile(projectFile);
+		}
+		catch(Exception e)
+		{
+			throw new IOException("Error reading project file " + gaFile, e);
 		}
-		File cacheFile = new File(gaFile + ".cache");
 		if(cacheFile.exists())
 		{
-			if(cacheFile.lastModified() > projectFile.lastModified())
+			try
 			{
-				try(ObjectInputStream ois = new ObjectInputStream(new FileInputStream(cacheFile)))
+				if(readProjectCache(cacheFile, projectHash))
 				{
-					gaTable = (Map<String, GroupAddressInfo>)ois.readObject();
-					gaByName = (Map<String, GroupAddressInfo>)ois.readObject();
-					for(GroupAddressInfo gai: gaTable.values())
-						gai.createTranslator();
-					L.config("Read group address table from " + cacheFile + ": " + gaTable);
+					long totalTime = System.currentTimeMillis() - startTime;
+					L.config("Read group address table from " + cacheFile + " in " + totalTime + "ms: " + loading.byAddressString);
 					return;
 				}
-				catch(Exception e)
-				{
-					L.log(Level.WARNING, "Error reading cache file " + cacheFile + ", ignoring it", e);
-				}
 			}
-			else
+			catch(Exception e)
 			{
-				L.info("Cache file " + cacheFile + " exists, but project file is newer, ignoring it");
+				L.log(Level.WARNING, "Error reading cache file " + cacheFile + ", ignoring it", e);
 			}
 		}
-		long startTime = System.currentTimeMillis();
 		try(ZipFile zf = new ZipFile(gaFile))
 		{
 			// Find the project file
@@ -242,41 +789,39 @@ public class GroupAddressManager
 					break;
 				}
 			}
-			for(GroupAddressInfo gai: gaTable.values())
-				gai.createTranslator();
 			long totalTime = System.currentTimeMillis() - startTime;
-			L.config("Reading group address table took " + totalTime + "ms: " + gaTable);
+			L.config("Reading group address table took " + totalTime + "ms: " + loading.byAddressString);
 		}
 		catch(Exception e)
 		{
-			L.log(Level.SEVERE, "Error reading project file " + gaFile, e);
-			System.exit(1);
+			throw new IOException("Error reading project file " + gaFile, e);
 		}
-		try(ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(cacheFile)))
+		finally
+		{
+			// Hint at JVM to get rid of the caches
+			deviceDescriptionCache = null;
+			dptMap = null;
+			System.gc();
+		}
+		try
 		{
-			oos.writeObject(gaTable);
-			oos.writeObject(gaByName);
+			writeProjectCache(cacheFile, projectHash);
 		}
 		catch(Exception e)
 		{
 			L.log(Level.INFO, "Unable to write project cache file " + cacheFile + ". This does not impair functionality, but subsequent startups will not be faster", e);
 		}
-		// Hint at JVM to get rid of the caches
-		deviceDescriptionCache = null;
-		dptMap = null;
-		System.gc();
 	}
 
 	private static void storeGAInfo(String address, String name, String datapointType)
 	{
-		String ga = new GroupAddress(Integer.parseInt(address)).toString();
+		int rawAddress = Integer.parseInt(address);
 
-		GroupAddressInfo gai = gaTable.get(ga);
+		GroupAddressInfo gai = loading.byAddress[rawAddress];
 		if(gai == null)
 		{
-			gai = new GroupAddressInfo(name, ga);
-			gaTable.put(ga, gai);
-			gaByName.put(name, gai);
+			gai = new GroupAddressInfo(name, new GroupAddress(rawAddress).toString(), rawAddress);
+			putGAInfo(gai);
 		}
 		Pattern p = Pattern.compile("DPS?T-([0-9]+)(-([0-9]+))?");
 		Matcher m = p.matcher(datapointType);
@@ -301,90 +846,237 @@ public class GroupAddressManager
 	}
 
 	/*
-	 * First step in parsing: find the GroupAddresses and their IDs
+	 * A ComObjectInstanceRef a group address is connected to. One instance is shared by
+	 * all group addresses connected to the same ComObjectInstanceRef
 	 */
-	private static void processETS4ProjectFile(ZipFile zf, ZipEntry zep) throws ParserConfigurationException, SAXException, IOException
-	{
-		DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-		docBuilderFactory.setCoalescing(true);
-		DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-		Document doc = docBuilder.parse(zf.getInputStream(zep));
-		NodeList gas = doc.getElementsByTagName("GroupAddress");
-		NodeList sendConnections = doc.getElementsByTagName("Send");
-		NodeList receiveConnections = doc.getElementsByTagName("Receive");
-		for(int ix = 0; ix < gas.getLength(); ix++)
-		{
-			Element e = (Element)gas.item(ix);
-			// Resolve the full "path" name of the group by going upwards in the
-			// GroupRanges
-			String name = null;
-			for(Element pe = e;;)
-			{
-				if(name == null)
-					name = pe.getAttribute("Name");
-				else
-					name = pe.getAttribute("Name") + "/" + name;
+	private static class ComObjectInstanceRef
+	{
+		final String refId;
+		final String datapointType;
+		/* Empty if the device description's flag applies */
+		final String readFlag;
 
-				pe = (Element)pe.getParentNode();
-				if(!"GroupRange".equals(pe.getNodeName()))
-					break;
-			}
+		ComObjectInstanceRef(String refId, String datapointType, String readFlag)
+		{
+			this.refId = refId;
+			this.datapointType = datapointType;
+			this.readFlag = readFlag;
+		}
+	}
+
+	/*
+	 * A group address without a DPT, to be resolved once all connections are known
+	 */
+	private static class UnresolvedGroupAddress
+	{
+		final String id;
+		final String address;
+		final String name;
 
-			String address = e.getAttribute("Address");
+		UnresolvedGroupAddress(String id, String address, String name)
+		{
+			this.id = id;
+			this.address = address;
+			this.name = name;
+		}
+	}
 
-			// If we're lucky, the DPT is already specified here
-			String dpt = e.getAttribute("DatapointType");
-			if(dpt.length() != 0)
+	private static String getAttribute(XMLStreamReader r, String name)
+	{
+		String val = r.getAttributeValue(null, name);
+		return val != null ? val : "";
+	}
+
+	private static void addConnection(Map<String, List<ComObjectInstanceRef>> connections, String gaId, ComObjectInstanceRef coir)
+	{
+		List<ComObjectInstanceRef> l = connections.get(gaId);
+		if(l == null)
+			connections.put(gaId, l = new ArrayList<>(2));
+		l.add(coir);
+	}
+
+	/*
+	 * First step in parsing: find the GroupAddresses and their IDs, and index the
+	 * connections by GroupAddressRefId. This is a single streaming pass over the
+	 * project data, as the topology and the group addresses may come in any order
+	 */
+	private static void processETS4ProjectFile(ZipFile zf, ZipEntry zep) throws XMLStreamException, SAXException, IOException, ParserConfigurationException
+	{
+		List<UnresolvedGroupAddress> unresolved = new ArrayList<>();
+		// Raw address by GroupAddress Id, of all group addresses
+		Map<String, String> addressesById = new HashMap<>();
+		Map<String, List<ComObjectInstanceRef>> receiveConnections = new HashMap<>();
+		Map<String, List<ComObjectInstanceRef>> sendConnections = new HashMap<>();
+		// Names of the currently open elements, and the full names of the open GroupRanges
+		Deque<String> elements = new ArrayDeque<>();
+		Deque<String> groupRangePrefixes = new ArrayDeque<>();
+		ComObjectInstanceRef coir = null;
+		int coirDepth = 0;
+
+		XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(zf.getInputStream(zep));
+		try
+		{
+			while(r.hasNext())
 			{
-				storeGAInfo(address, name, dpt);
-				continue;
+				int event = r.next();
+				if(event == XMLStreamConstants.START_ELEMENT)
+				{
+					String element = r.getLocalName();
+					if("GroupRange".equals(element))
+					{
+						String prefix = groupRangePrefixes.isEmpty() ? "" : groupRangePrefixes.peek();
+						groupRangePrefixes.push(prefix + getAttribute(r, "Name") + "/");
+					}
+					else if("GroupAddress".equals(element))
+					{
+						String prefix = groupRangePrefixes.isEmpty() ? "" : groupRangePrefixes.peek();
+						String name = prefix + getAttribute(r, "Name");
+						String address = getAttribute(r, "Address");
+						// If we're lucky, the DPT is already specified here
+						String dpt = getAttribute(r, "DatapointType");
+						addressesById.put(getAttribute(r, "Id"), address);
+						if(dpt.length() != 0)
+							storeGAInfo(address, name, dpt);
+						else
+							unresolved.add(new UnresolvedGroupAddress(getAttribute(r, "Id"), address, name));
+					}
+					else if("ComObjectInstanceRef".equals(element))
+					{
+						coir = new ComObjectInstanceRef(getAttribute(r, "RefId"), getAttribute(r, "DatapointType"), getAttribute(r, "ReadFlag"));
+						coirDepth = elements.size();
+					}
+					else if("Send".equals(element) || "Receive".equals(element))
+					{
+						if(coir == null || elements.size() != coirDepth + 2 || !"Connectors".equals(elements.peek()))
+							L.warning("Weird project structure -- connection not owned by a ComObjectInstanceRef, but " + elements.peek());
+						else
+							addConnection("Send".equals(element) ? sendConnections : receiveConnections, getAttribute(r, "GroupAddressRefId"), coir);
+					}
+					elements.push(element);
+				}
+				else if(event == XMLStreamConstants.END_ELEMENT)
+				{
+					String element = elements.pop();
+					if("GroupRange".equals(element))
+						groupRangePrefixes.pop();
+					else if("ComObjectInstanceRef".equals(element))
+						coir = null;
+				}
 			}
+		}
+		finally
+		{
+			r.close();
+		}
+
+		// We're not lucky for these. Look into the connections, and thus the device descriptions
+		saxFactory = SAXParserFactory.newInstance();
+		deviceDescriptionCache = new ConcurrentHashMap<>();
+		Set<String> deviceDescriptions = new LinkedHashSet<>();
+		for(UnresolvedGroupAddress ga: unresolved)
+		{
+			for(Map<String, List<ComObjectInstanceRef>> connections: Arrays.asList(receiveConnections, sendConnections))
+			{
+				List<ComObjectInstanceRef> l = connections.get(ga.id);
+				if(l == null)
+					continue;
+				for(ComObjectInstanceRef connected: l)
+					if(connected.datapointType.length() == 0)
+						deviceDescriptions.add(getDeviceDescriptionFilename(connected.refId));
+			}
+		}
+		// The read flags not given in the project need the device descriptions as well
+		for(Map<String, List<ComObjectInstanceRef>> connections: Arrays.asList(receiveConnections, sendConnections))
+			for(List<ComObjectInstanceRef> l: connections.values())
+				for(ComObjectInstanceRef connected: l)
+					if(connected.readFlag.length() == 0 && connected.refId.indexOf('_') > 0)
+						deviceDescriptions.add(getDeviceDescriptionFilename(connected.refId));
+		preloadDeviceDescriptions(zf, deviceDescriptions);
+		for(UnresolvedGroupAddress ga: unresolved)
+			processETS4GroupAddressConnections(zf, receiveConnections.get(ga.id), sendConnections.get(ga.id), ga.id, ga.address, ga.name);
+
+		int unreadable = 0;
+		for(Map.Entry<String, String> ga: addressesById.entrySet())
+		{
+			GroupAddressInfo gai = loading.byAddress[Integer.parseInt(ga.getValue())];
+			if(gai == null)
+				continue;
+			gai.readable = isReadable(zf, receiveConnections.get(ga.getKey())) || isReadable(zf, sendConnections.get(ga.getKey()));
+			if(!gai.readable)
+				unreadable++;
+		}
+		L.fine(unreadable + " group addresses have no readable communication object connected");
+	}
 
-			// We're not lucky. Look into the connections
-			processETS4GroupAddressConnections(zf, doc, sendConnections, receiveConnections, e.getAttribute("Id"), address, name);
+	/*
+	 * A read request is answered by a connected communication object with the read flag set.
+	 * If a flag can't be determined, we assume it's set
+	 */
+	private static boolean isReadable(ZipFile zf, List<ComObjectInstanceRef> connections)
+	{
+		if(connections == null)
+			return false;
+		for(ComObjectInstanceRef coir: connections)
+		{
+			String flag = coir.readFlag.length() != 0 ? coir.readFlag : getDeviceReadFlag(zf, coir.refId);
+			if(flag == null || "Enabled".equals(flag))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * @return the read flag of the ComObjectRef, or of the ComObject it refers to, null if unknown
+	 */
+	private static String getDeviceReadFlag(ZipFile zf, String refId)
+	{
+		try
+		{
+			Map<String, ComObjectInfo> dev = loadDeviceDescription(zf, getDeviceDescriptionFilename(refId));
+			ComObjectInfo cobjref = dev.get(refId);
+			if(cobjref == null)
+				return null;
+			if(cobjref.readFlag != null)
+				return cobjref.readFlag;
+			ComObjectInfo cobj = cobjref.refId != null ? dev.get(cobjref.refId) : null;
+			return cobj != null ? cobj.readFlag : null;
+		}
+		catch(Exception e)
+		{
+			L.log(Level.FINE, "Unable to determine the read flag of " + refId + ", assuming it's set", e);
+			return null;
 		}
 	}
 
 	/*
 	 * Find out what is connected to this group address
 	 */
-	private static void processETS4GroupAddressConnections(ZipFile zf, Document doc, NodeList sendConnections, NodeList receiveConnections, String id, String address, String name) throws SAXException, IOException, ParserConfigurationException
+	private static void processETS4GroupAddressConnections(ZipFile zf, List<ComObjectInstanceRef> receiveConnections, List<ComObjectInstanceRef> sendConnections, String id, String address, String name) throws SAXException, IOException, ParserConfigurationException
 	{
-		boolean foundConnection = false;
+		boolean foundConnection = receiveConnections != null || sendConnections != null;
 		for(int attempt = 0; attempt < 4; attempt++)
 		{
 			// We can give up early if we didn't find a connection at all
 			if(attempt == 2 && !foundConnection)
 				break;
-			NodeList connectors = ((attempt & 1) == 0) ? receiveConnections : sendConnections;
+			List<ComObjectInstanceRef> connectors = ((attempt & 1) == 0) ? receiveConnections : sendConnections;
+			if(connectors == null)
+				continue;
 			boolean useObjectSize = (attempt & 2) != 0;
-			for(int ix = 0; ix < connectors.getLength(); ix++)
+			for(ComObjectInstanceRef coir: connectors)
 			{
-				Element e = (Element)connectors.item(ix);
-				if(id.equals(e.getAttribute("GroupAddressRefId")))
+				/*
+				 * Perhaps we're lucky and someone specified it in the
+				 * CombObjectInstanceRef?
+				 */
+				if(coir.datapointType.length() != 0)
 				{
-					Element pe = (Element)e.getParentNode().getParentNode();
-					if(!"ComObjectInstanceRef".equals(pe.getNodeName()))
-					{
-						L.warning("Weird project structure -- connection not owned by a ComObjectInstanceRef, but " + pe.getNodeName());
-						continue;
-					}
-					foundConnection = true;
-
-					/*
-					 * Perhaps we're lucky and someone specified it in the
-					 * CombObjectInstanceRef?
-					 */
-					String dpt = pe.getAttribute("DatapointType");
-					if(dpt.length() != 0)
-					{
-						storeGAInfo(address, name, dpt);
-						return;
-					}
-					/* No luck, no luck. Dig deeper */
-					if(processETS4GroupConnection(zf, pe.getAttribute("RefId"), id, address, name, useObjectSize))
-						return;
+					storeGAInfo(address, name, coir.datapointType);
+					return;
 				}
+				/* No luck, no luck. Dig deeper */
+				if(processETS4GroupConnection(zf, coir.refId, id, address, name, useObjectSize))
+					return;
 			}
 		}
 		if(!foundConnection)
@@ -393,65 +1085,118 @@ public class GroupAddressManager
 			throw new IllegalArgumentException("Unable to determine datapoint type for " + id + "/" + address + "/" + name);
 	}
 
-	private static Map<String, Map<String, Map<String, String>>> deviceDescriptionCache;
+	/*
+	 * The attributes of a ComObject or ComObjectRef in a device description which are
+	 * needed to determine a DPT. Attributes which are not specified are null
+	 */
+	private static class ComObjectInfo
+	{
+		final String refId;
+		final String datapointType;
+		final String objectSize;
+		final String readFlag;
+
+		ComObjectInfo(String refId, String datapointType, String objectSize, String readFlag)
+		{
+			this.refId = refId;
+			this.datapointType = datapointType;
+			this.objectSize = objectSize;
+			this.readFlag = readFlag;
+		}
+	}
+
+	private static Map<String, Map<String, ComObjectInfo>> deviceDescriptionCache;
 	private static Map<Integer, String> dptMap;
 	private static SAXParserFactory saxFactory;
 
-	private static Map<String, Map<String, String>> loadDeviceDescription(ZipFile zf, String filename) throws ParserConfigurationException, SAXException, IOException
+	private static String getDeviceDescriptionFilename(String refId)
 	{
-		if(deviceDescriptionCache == null)
+		String refIdParts[] = refId.split("_");
+		return refIdParts[0] + "/" + refIdParts[0] + "_" + refIdParts[1] + ".xml";
+	}
+
+	/*
+	 * Parse the given device descriptions concurrently into the cache. This is
+	 * best effort: a description which fails to load here is loaded again when
+	 * it's actually needed, which then reports the error
+	 */
+	private static void preloadDeviceDescriptions(final ZipFile zf, Collection<String> filenames)
+	{
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(final String filename: filenames)
 		{
-			saxFactory = SAXParserFactory.newInstance();
-			deviceDescriptionCache = new HashMap<>();
+			if(deviceDescriptionCache.containsKey(filename))
+				continue;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception
+				{
+					loadDeviceDescription(zf, filename);
+					return null;
+				}
+			});
 		}
-		else
+		long startTime = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool();
+		try
 		{
-			Map<String, Map<String, String>> cacheEntry = deviceDescriptionCache.get(filename);
-			if(cacheEntry != null)
-			{
-				return cacheEntry;
-			}
+			pool.invokeAll(tasks);
+		}
+		finally
+		{
+			pool.shutdown();
 		}
+		L.fine("Parsing " + tasks.size() + " device descriptions with " + pool.getParallelism() + " threads took " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	private static Map<String, ComObjectInfo> loadDeviceDescription(ZipFile zf, String filename) throws ParserConfigurationException, SAXException, IOException
+	{
+		Map<String, ComObjectInfo> cacheEntry = deviceDescriptionCache.get(filename);
+		if(cacheEntry != null)
+			return cacheEntry;
 		ZipEntry ze = zf.getEntry(filename);
 		if(ze == null)
 			throw new IllegalArgumentException("Unable to find device description " + filename);
-		final Map<String, Map<String, String>> attrById = new HashMap<>();
-		SAXParser saxParser = saxFactory.newSAXParser();
+		final Map<String, ComObjectInfo> comObjectsById = new HashMap<>();
+		SAXParser saxParser;
+		// SAXParserFactory is not guaranteed to be thread-safe
+		synchronized(saxFactory)
+		{
+			saxParser = saxFactory.newSAXParser();
+		}
 		DefaultHandler gaHandler = new DefaultHandler() {
 			@Override
 			public void startElement(String uri, String localName, String qName, Attributes attr) throws SAXException
 			{
 				if("ComObjectRef".equals(qName) || "ComObject".equals(qName))
 				{
-					// Convert the mutable Attributes object
-					Map<String, String> pattr = new HashMap<>();
-					for(int ix = 0; ix < attr.getLength(); ix++)
-						pattr.put(attr.getQName(ix), attr.getValue(ix));
-					attrById.put(pattr.get("Id"), pattr);
+					// Only keep what we need, not the whole mutable Attributes object
+					comObjectsById.put(attr.getValue("Id"), new ComObjectInfo(attr.getValue("RefId"), attr.getValue("DatapointType"), attr.getValue("ObjectSize"), attr.getValue("ReadFlag")));
 				}
 			}
 		};
-		saxParser.parse(zf.getInputStream(ze), gaHandler);
-		deviceDescriptionCache.put(filename, attrById);
-		return attrById;
+		try(InputStream is = zf.getInputStream(ze))
+		{
+			saxParser.parse(is, gaHandler);
+		}
+		deviceDescriptionCache.put(filename, comObjectsById);
+		return comObjectsById;
 	}
 
 	private static boolean processETS4GroupConnection(ZipFile zf, String refId, String id, String address, String name, boolean useObjectSize) throws SAXException, IOException, ParserConfigurationException
 	{
-		// Right, we need to look into the device description. Determine it's
-		// filename
-		String refIdParts[] = refId.split("_");
-		String pathName = refIdParts[0] + "/" + refIdParts[0] + "_" + refIdParts[1] + ".xml";
-		Map<String, Map<String, String>> dev = loadDeviceDescription(zf, pathName);
-		Map<String, String> cobjref = dev.get(refId);
+		// Right, we need to look into the device description
+		String pathName = getDeviceDescriptionFilename(refId);
+		Map<String, ComObjectInfo> dev = loadDeviceDescription(zf, pathName);
+		ComObjectInfo cobjref = dev.get(refId);
 		if(cobjref == null)
 			throw new IllegalArgumentException("Unable to find ComObjectRef with Id " + refId + " in " + pathName);
 		// Perhaps the ComObjectRef
 		if(processETS4ComObj(cobjref, zf, address, name, useObjectSize))
 			return true;
 
-		String refco = cobjref.get("RefId");
-		Map<String, String> cobj = dev.get(refco);
+		String refco = cobjref.refId;
+		ComObjectInfo cobj = dev.get(refco);
 		if(cobj == null)
 			throw new IllegalArgumentException("Unable to find ComObject with Id " + refco + " in " + pathName);
 
@@ -461,9 +1206,9 @@ public class GroupAddressManager
 		return false;
 	}
 
-	private static boolean processETS4ComObj(Map<String, String> cobj, ZipFile zf, String address, String name, boolean useObjectSize) throws SAXException, IOException, ParserConfigurationException
+	private static boolean processETS4ComObj(ComObjectInfo cobj, ZipFile zf, String address, String name, boolean useObjectSize) throws SAXException, IOException, ParserConfigurationException
 	{
-		String dpt = cobj.get("DatapointType");
+		String dpt = cobj.datapointType;
 		if(dpt != null && dpt.length() != 0)
 		{
 			storeGAInfo(address, name, dpt);
@@ -471,7 +1216,7 @@ public class GroupAddressManager
 		}
 		if(useObjectSize)
 		{
-			String objSize = cobj.get("ObjectSize");
+			String objSize = cobj.objectSize;
 			if(objSize != null && objSize.length() != 0)
 			{
 				// "1 Bit" is pretty unambigious -- no warning for that
@@ -0,0 +1,164 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+import java.util.logging.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+import tuwien.auto.calimero.*;
+import tuwien.auto.calimero.exception.*;
+
+/**
+ * Queue of outgoing group writes and reads, drained by the KNX sender thread.
+ *
+ * Requests are coalesced per group address: a write to a group address which
+ * already has a write pending replaces the pending value (last write wins), and
+ * a read for a group address with a pending read is dropped. The coalesced request
+ * keeps its original place in the queue.
+ *
+ * There is one queue per KNX priority class. Requests of a higher class are
+ * always taken first, in the order the bus arbitrates them: system, urgent,
+ * normal, low.
+ */
+public class GroupWriteQueue
+{
+	private static final Logger L=Logger.getLogger(GroupWriteQueue.class.getName());
+
+	private static PrefixConfig priorityConfig;
+	/* Invalid priority.* values we already warned about */
+	private static final Set<String> invalidPriorities=new HashSet<>();
+
+	/**
+	 * @return the priority configured for the group address name via knx2mqtt.priority.*,
+	 * Priority.LOW by default
+	 */
+	static synchronized Priority priorityForName(String name)
+	{
+		if(priorityConfig==null)
+			priorityConfig=PrefixConfig.fromSystemProperties("priority");
+		String spec=priorityConfig.lookup(name);
+		if(spec==null || spec.length()==0)
+			return Priority.LOW;
+		try
+		{
+			return Priority.get(spec.toLowerCase(Locale.ROOT));
+		}
+		catch(KNXIllegalArgumentException e)
+		{
+			if(invalidPriorities.add(spec))
+				L.warning("Invalid priority '"+spec+"', must be SYSTEM, URGENT, NORMAL or LOW. Using LOW instead");
+			return Priority.LOW;
+		}
+	}
+
+	private static int rank(Priority p)
+	{
+		if(p==Priority.SYSTEM)
+			return 0;
+		if(p==Priority.URGENT)
+			return 1;
+		if(p==Priority.NORMAL)
+			return 2;
+		return 3;
+	}
+
+	static class Request
+	{
+		final GroupAddressInfo gai;
+		final boolean write;
+		String value;
+		long queueTime;
+
+		Request(GroupAddressInfo gai,boolean write,String value,long queueTime)
+		{
+			this.gai=gai;
+			this.write=write;
+			this.value=value;
+			this.queueTime=queueTime;
+		}
+
+		@Override
+		public String toString()
+		{
+			return (write?"write "+value+" to ":"read from ")+gai.address;
+		}
+	}
+
+	/* Indexed by rank() */
+	private final List<LinkedHashMap<Integer,Request>> pending=new ArrayList<>(4);
+	{
+		for(int ix=0;ix<4;ix++)
+			pending.add(new LinkedHashMap<Integer,Request>());
+	}
+	private int size;
+	private long coalesced;
+
+	private static Integer key(GroupAddressInfo gai,boolean write)
+	{
+		// Writes and reads to the same group address are kept apart
+		return Integer.valueOf(write ? gai.rawAddress : gai.rawAddress|0x10000);
+	}
+
+	public synchronized void queueWrite(GroupAddressInfo gai,String value)
+	{
+		Integer k=key(gai,true);
+		Map<Integer,Request> q=pending.get(rank(gai.priority));
+		Request r=q.get(k);
+		if(r!=null)
+		{
+			r.value=value;
+			coalesced++;
+			return;
+		}
+		q.put(k,new Request(gai,true,value,System.currentTimeMillis()));
+		size++;
+		notifyAll();
+	}
+
+	public synchronized void queueRead(GroupAddressInfo gai)
+	{
+		Integer k=key(gai,false);
+		Map<Integer,Request> q=pending.get(rank(gai.priority));
+		if(q.containsKey(k))
+		{
+			coalesced++;
+			return;
+		}
+		q.put(k,new Request(gai,false,null,System.currentTimeMillis()));
+		size++;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for and remove the oldest pending request of the highest priority class
+	 */
+	public synchronized Request take() throws InterruptedException
+	{
+		while(size==0)
+			wait();
+		for(Map<Integer,Request> q:pending)
+		{
+			if(q.isEmpty())
+				continue;
+			Iterator<Request> it=q.values().iterator();
+			Request r=it.next();
+			it.remove();
+			size--;
+			return r;
+		}
+		throw new IllegalStateException("Queue size out of sync");
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of requests which were merged into an already pending one
+	 */
+	public synchronized long getCoalesced()
+	{
+		return coalesced;
+	}
+}
@@ -0,0 +1,234 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Minimal JSON writer which renders directly into a reusable UTF-8 byte buffer.
+ *
+ * This is used for the status messages, whose structure is fixed, and thus
+ * doesn't need a full JSON object model. Instances are not thread-safe.
+ */
+public class JsonPayloadWriter
+{
+	private byte buf[]=new byte[256];
+	private int len;
+
+	public JsonPayloadWriter reset()
+	{
+		len=0;
+		return this;
+	}
+
+	public int length()
+	{
+		return len;
+	}
+
+	private void ensure(int extra)
+	{
+		if(len+extra>buf.length)
+			buf=Arrays.copyOf(buf,Math.max(buf.length*2,len+extra));
+	}
+
+	private void put(int b)
+	{
+		ensure(1);
+		buf[len++]=(byte)b;
+	}
+
+	/**
+	 * Append pre-rendered JSON as-is
+	 */
+	public JsonPayloadWriter raw(byte fragment[])
+	{
+		ensure(fragment.length);
+		System.arraycopy(fragment,0,buf,len,fragment.length);
+		len+=fragment.length;
+		return this;
+	}
+
+	/**
+	 * Append a plain ASCII string without quoting or escaping
+	 */
+	public JsonPayloadWriter raw(String ascii)
+	{
+		int n=ascii.length();
+		ensure(n);
+		for(int ix=0;ix<n;ix++)
+			buf[len++]=(byte)ascii.charAt(ix);
+		return this;
+	}
+
+	public JsonPayloadWriter number(long v)
+	{
+		if(v==Long.MIN_VALUE)
+			return raw(Long.toString(v));
+		if(v<0)
+		{
+			put('-');
+			v=-v;
+		}
+		ensure(19);
+		int start=len;
+		do
+		{
+			buf[len++]=(byte)('0'+v%10);
+			v/=10;
+		}
+		while(v!=0);
+		// Digits were written in reverse
+		for(int i=start,j=len-1;i<j;i++,j--)
+		{
+			byte t=buf[i];
+			buf[i]=buf[j];
+			buf[j]=t;
+		}
+		return this;
+	}
+
+	private static final double POW10[]={1,10,100,1000,10000,100000,1000000};
+
+	/**
+	 * Append a double. Values with up to six fractional digits are written in plain decimal
+	 * notation without creating intermediate strings; integral values are written without
+	 * a fractional part. NaN and infinite values, which JSON can't represent, are written as null.
+	 */
+	public JsonPayloadWriter number(double v)
+	{
+		if(Double.isNaN(v) || Double.isInfinite(v))
+			return raw("null");
+		if(Math.abs(v)<1e12)
+		{
+			for(int decimals=0;decimals<POW10.length;decimals++)
+			{
+				long scaled=Math.round(v*POW10[decimals]);
+				// The division is correctly rounded, so this is exactly what parsing the decimal would give
+				if(scaled/POW10[decimals]!=v)
+					continue;
+				if(decimals==0)
+					return number(scaled);
+				if(scaled<0)
+				{
+					put('-');
+					scaled=-scaled;
+				}
+				long divisor=(long)POW10[decimals];
+				number(scaled/divisor);
+				put('.');
+				long frac=scaled%divisor;
+				for(long d=divisor/10;d>0;d/=10)
+					put((int)('0'+(frac/d)%10));
+				return this;
+			}
+		}
+		String s=Double.toString(v);
+		if(s.endsWith(".0"))
+			s=s.substring(0,s.length()-2);
+		return raw(s);
+	}
+
+	/**
+	 * Append a quoted and escaped string
+	 */
+	public JsonPayloadWriter string(String s)
+	{
+		int n=s.length();
+		ensure(n+2);
+		buf[len++]='"';
+		for(int ix=0;ix<n;ix++)
+		{
+			char ch=s.charAt(ix);
+			if(ch=='"' || ch=='\\')
+			{
+				put('\\');
+				put(ch);
+			}
+			else if(ch<0x20 || ch==0x2028 || ch==0x2029)
+			{
+				switch(ch)
+				{
+					case '\n':
+						raw("\\n");
+						break;
+					case '\r':
+						raw("\\r");
+						break;
+					case '\t':
+						raw("\\t");
+						break;
+					default:
+						raw("\\u");
+						put(HEX[(ch>>12)&0xf]);
+						put(HEX[(ch>>8)&0xf]);
+						put(HEX[(ch>>4)&0xf]);
+						put(HEX[ch&0xf]);
+				}
+			}
+			else if(ch<0x80)
+				put(ch);
+			else if(ch<0x800)
+			{
+				put(0xc0|(ch>>6));
+				put(0x80|(ch&0x3f));
+			}
+			else if(Character.isHighSurrogate(ch) && ix+1<n && Character.isLowSurrogate(s.charAt(ix+1)))
+			{
+				int cp=Character.toCodePoint(ch,s.charAt(++ix));
+				put(0xf0|(cp>>18));
+				put(0x80|((cp>>12)&0x3f));
+				put(0x80|((cp>>6)&0x3f));
+				put(0x80|(cp&0x3f));
+			}
+			else
+			{
+				put(0xe0|(ch>>12));
+				put(0x80|((ch>>6)&0x3f));
+				put(0x80|(ch&0x3f));
+			}
+		}
+		put('"');
+		return this;
+	}
+
+	/**
+	 * Append a value in the representation of the ValueStore
+	 */
+	public JsonPayloadWriter value(int type,long bits,String s)
+	{
+		switch(type)
+		{
+			case ValueStore.TYPE_LONG:
+				return number(bits);
+			case ValueStore.TYPE_DOUBLE:
+				return number(Double.longBitsToDouble(bits));
+			case ValueStore.TYPE_STRING:
+				return string(s);
+			default:
+				return raw("null");
+		}
+	}
+
+	private static final byte HEX[]="0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * @return a copy of the current content. A copy is required as the MQTT client keeps
+	 * a reference to the payload until it has been sent
+	 */
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOf(buf,len);
+	}
+
+	public void writeTo(OutputStream os) throws IOException
+	{
+		os.write(buf,0,len);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new String(buf,0,len,StandardCharsets.UTF_8);
+	}
+}
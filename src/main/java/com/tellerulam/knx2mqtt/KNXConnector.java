@@ -1,11 +1,14 @@
 package com.tellerulam.knx2mqtt;
 
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
 
 import tuwien.auto.calimero.*;
+import tuwien.auto.calimero.cemi.*;
 import tuwien.auto.calimero.dptxlator.*;
 import tuwien.auto.calimero.exception.*;
 import tuwien.auto.calimero.knxnetip.*;
@@ -13,17 +16,60 @@ import tuwien.auto.calimero.link.*;
 import tuwien.auto.calimero.link.medium.*;
 import tuwien.auto.calimero.process.*;
 
+/**
+ * A connection to the KNX bus via one KNXnet/IP interface or router.
+ *
+ * Several of them can be configured: the first one with the knx.* options, further ones with
+ * knx.2.*, knx.3.* etc. Telegrams from all links are processed in one ingest, where telegrams
+ * which are seen via multiple links are only processed once. Each link has its own write queue,
+ * sender and pacing; writes and reads go to the link which owns the group address, see route().
+ *
+ * The ingest is serialized by the global ingest lock, which guards the duplicate filter, the
+ * ValueStore and the ingest translators. With several links, their telegrams are thus processed
+ * one at a time rather than in parallel. That is a deliberate tradeoff: processing a telegram
+ * takes microseconds, while a KNX line carries some 50 telegrams per second, and a lock which is
+ * only briefly and mostly uncontended held is cheaper than coordinating per group address.
+ * Group writes don't take the lock, so they run in parallel with the ingest.
+ */
 public class KNXConnector extends Thread implements NetworkLinkListener
 {
-	private final Logger L=Logger.getLogger(getClass().getName());
+	private static final Logger L=Logger.getLogger(KNXConnector.class.getName());
 
-	private KNXNetworkLink link;
+	/* 1-based number of this link */
+	private final int index;
+	/* Prefix of this link's configuration properties */
+	private final String configPrefix;
+	private volatile KNXNetworkLink link;
 	private ProcessCommunicator pc;
+	/* The gateways configured with knx.ip, tried in turn when connecting fails */
+	private final String gateways[];
+	/* Index of the gateway we're connected to or trying next, only used by the connection thread */
+	private int gateway;
+	/* Index of the gateway the link was last open with, -1 before the first connect */
+	private int connectedGateway=-1;
+	/* Pairs of raw group addresses, first and last of each range assigned to this link with knx.groupaddresses */
+	private final int ownedRanges[];
+
+	private static final Metrics.Counter receivedMetric=Metrics.counter("knx/received");
+	private static final Metrics.Counter sentMetric=Metrics.counter("knx/sent");
+	private static final Metrics.Counter sendErrorsMetric=Metrics.counter("knx/send_errors");
+	private static final Metrics.Counter unknownGAMetric=Metrics.counter("knx/unknown_ga");
+	private static final Metrics.Counter translationErrorsMetric=Metrics.counter("knx/translation_errors");
+	private static final Metrics.Counter reconnectsMetric=Metrics.counter("knx/reconnects");
+	private static final Metrics.Counter failoversMetric=Metrics.counter("knx/failovers");
+	private static final Metrics.Counter failbacksMetric=Metrics.counter("knx/failbacks");
+	/* From a link closing until it's open again */
+	private static final Metrics.Histogram reconnectTimeMetric=Metrics.histogram("latency/knx_reconnect","ms");
+
+	private String getProperty(String key,String def)
+	{
+		return System.getProperty(configPrefix+key,def);
+	}
 
 	public void connect() throws KNXException, InterruptedException
 	{
 		int knxConnectionType=KNXNetworkLinkIP.TUNNELING;
-		String connType=System.getProperty("knx2mqtt.knx.type");
+		String connType=getProperty("type",null);
 		if(connType!=null)
 		{
 			if("TUNNELING".equals(connType))
@@ -36,44 +82,61 @@ public class KNXConnector extends Thread implements NetworkLinkListener
 				knxConnectionType=-1;
 			}
 			else
-				throw new IllegalArgumentException("knx2mqtt.knx.type must bei either TUNNELING, ROUTING or SERIAL");
+				throw new IllegalArgumentException(configPrefix+"type must bei either TUNNELING, ROUTING or SERIAL");
 		}
 		if(knxConnectionType!=-1)
 			connectIP(knxConnectionType);
 
-		MQTTHandler.setKNXConnectionState(true);
+		updateConnectionState();
 
 		link.addLinkListener(this);
 		pc=new ProcessCommunicatorImpl(link);
 		pc.addProcessListener(processListener);
+		// Wake up the sender, which holds on to its request until the link is open
+		synchronized(linkState)
+		{
+			linkState.notifyAll();
+		}
 	}
 
-	private void connectIP(int knxConnectionType) throws KNXException, InterruptedException
+	private InetSocketAddress getGatewayAddress(int ix)
 	{
-		String hostIP=System.getProperty("knx2mqtt.knx.ip","setme");
-		int port=Integer.getInteger("knx2mqtt.knx.port", KNXnetIPConnection.DEFAULT_PORT).intValue();
-		String localIP=System.getProperty("knx2mqtt.knx.localip");
-		InetSocketAddress local;
+		String hostIP=gateways[ix];
+		int port=Integer.parseInt(getProperty("port",String.valueOf(KNXnetIPConnection.DEFAULT_PORT)));
+		// A gateway may come with its own port, as host:port
+		int colon=hostIP.indexOf(':');
+		if(colon>0 && hostIP.indexOf(':',colon+1)<0)
+		{
+			port=Integer.parseInt(hostIP.substring(colon+1));
+			hostIP=hostIP.substring(0,colon);
+		}
+		return new InetSocketAddress(hostIP,port);
+	}
+
+	private InetSocketAddress getLocalAddress()
+	{
+		String localIP=getProperty("localip",null);
 		if(localIP!=null)
+			return new InetSocketAddress(localIP,0);
+		InetAddress localhost;
+		try
 		{
-			local=new InetSocketAddress(localIP,0);
+			localhost = InetAddress.getLocalHost();
 		}
-		else
+		catch(UnknownHostException e)
 		{
-			InetAddress localhost;
-			try
-			{
-				localhost = InetAddress.getLocalHost();
-			}
-			catch(UnknownHostException e)
-			{
-				L.log(Level.SEVERE,"Unable to lookup local host",e);
-				throw new IllegalArgumentException("Unable to determine local host address");
-			}
-			local=new InetSocketAddress(localhost,0);
+			L.log(Level.SEVERE,"Unable to lookup local host",e);
+			throw new IllegalArgumentException("Unable to determine local host address");
 		}
-		L.log(Level.INFO,"Establishing KNX IP connection to "+hostIP+":"+port+" ("+(knxConnectionType==KNXNetworkLinkIP.TUNNELING?"TUNNEL":"ROUTER")+") from "+local);
-		link=new KNXNetworkLinkIP(knxConnectionType, local, new InetSocketAddress(hostIP, port), false, TPSettings.TP1);
+		return new InetSocketAddress(localhost,0);
+	}
+
+	private void connectIP(int knxConnectionType) throws KNXException, InterruptedException
+	{
+		InetSocketAddress remote=getGatewayAddress(gateway);
+		InetSocketAddress local=getLocalAddress();
+		L.log(Level.INFO,"Establishing KNX IP connection to "+remote.getHostString()+":"+remote.getPort()+" ("+(knxConnectionType==KNXNetworkLinkIP.TUNNELING?"TUNNEL":"ROUTER")+") from "+local);
+		link=new KNXNetworkLinkIP(knxConnectionType, local, remote, false, TPSettings.TP1);
 		L.info("KNX IP Connection established");
 	}
 
@@ -85,71 +148,140 @@ public class KNXConnector extends Thread implements NetworkLinkListener
 	@Override
 	public void indication(FrameEvent fe)
 	{
-		/* Ignore */
+		// Every frame we see on the link counts towards the bus load
+		observedTelegrams.incrementAndGet();
 	}
 
 	@Override
 	public void linkClosed(CloseEvent ce)
 	{
-		L.info("Link closed: "+ce.getReason());
-		MQTTHandler.setKNXConnectionState(false);
+		L.info("Link "+index+" closed: "+ce.getReason());
+		updateConnectionState();
+		// Wake up the connection thread to reconnect right away
+		synchronized(linkState)
+		{
+			linkState.notifyAll();
+		}
+	}
+
+	/*
+	 * We're connected to the bus as long as any of the links is open
+	 */
+	private static void updateConnectionState()
+	{
+		boolean connected=false;
+		for(KNXConnector c:connectors)
+			if(c.isLinkOpen())
+				connected=true;
+		MQTTHandler.setKNXConnectionState(connected);
 	}
 
 	@Override
 	public void confirmation(FrameEvent fe)
 	{
-		/* Ignore */
+		if(tracker==null || !(fe.getFrame() instanceof CEMILData))
+			return;
+		CEMILData f=(CEMILData)fe.getFrame();
+		if(f.getDestination() instanceof GroupAddress)
+			tracker.confirmation(f.getDestination().getRawAddress(),f.getPayload(),f.isPositiveConfirmation());
 	}
 
 	private class MyProcessListener extends ProcessListenerEx
 	{
 		@Override
 		public void groupWrite(ProcessEvent pe)
+		{
+			processGroupTelegram(pe,false);
+		}
+
+		private void processGroupTelegram(ProcessEvent pe,boolean response)
+		{
+			// Telegrams from all links are processed one at a time, see the class comment
+			synchronized(ingestLock)
+			{
+				processGroupTelegramLocked(pe,response);
+			}
+		}
+
+		private void processGroupTelegramLocked(ProcessEvent pe,boolean response)
 		{
 			GroupAddress dest=pe.getDestination();
 			IndividualAddress src=pe.getSourceAddr();
 			byte[] asdu=pe.getASDU();
+
+			if(duplicateFilter!=null)
+			{
+				if(duplicateFilter.isDuplicate(index,src.getRawAddress(),dest.getRawAddress(),asdu,response,System.nanoTime()))
+				{
+					duplicatesMetric.inc();
+					if(L.isLoggable(Level.FINEST))
+						L.finest("Ignoring telegram to "+dest+" from "+src+" already seen via another link");
+					return;
+				}
+				// The link we see a group address' telegrams on first is the closest one to its devices
+				learnedLink[dest.getRawAddress()]=(byte)index;
+			}
+			// Counted once, whichever links it was seen on
+			receivedMetric.inc();
+
 			if(asdu.length==0)
 			{
 				L.info("Zero-length write to "+dest+" from "+src);
 				return;
 			}
 
-			GroupAddressInfo gaInfo=GroupAddressManager.getGAInfoForAddress(dest.toString());
+			GroupAddressInfo gaInfo=GroupAddressManager.getGAInfoForAddress(dest);
 
 			long now=System.currentTimeMillis();
 
 			try
 			{
-				Object val;
 				if(gaInfo==null)
 				{
 					String dpt;
+					int valType;
+					long valBits=0;
+					String valString=null;
 					if(asdu.length==1)
 					{
-						val=Integer.valueOf(asUnsigned(pe, ProcessCommunicationBase.UNSCALED));
+						valType=ValueStore.TYPE_LONG;
+						valBits=asUnsigned(pe, ProcessCommunicationBase.UNSCALED);
 						dpt="5.004";
 					}
 					else if(asdu.length==2)
 					{
-						val=Double.valueOf(asFloat(pe,false));
+						valType=ValueStore.TYPE_DOUBLE;
+						valBits=Double.doubleToLongBits(asFloat(pe,false));
 						dpt="9.001";
 					}
 					else
 					{
-						val="Unknown";
+						valType=ValueStore.TYPE_STRING;
+						valString="Unknown";
 						dpt="0.000";
 					}
-					L.info("Got "+val+" to unknown "+dest+" from "+src+" (ASDU length "+asdu.length+")");
-					MQTTHandler.publish(dest.toString(),val,src.toString(),dpt,null,now,now);
+					unknownGAMetric.inc();
+					L.info("Got "+ValueStore.toObject(valType,valBits,valString)+" to unknown "+dest+" from "+src+" (ASDU length "+asdu.length+")");
+					MQTTHandler.publish(dest.toString(),valType,valBits,valString,src.getRawAddress(),dpt,now);
 				}
 				else
 				{
-					MQTTHandler.publish(gaInfo.name,gaInfo.translateAndStoreValue(asdu,now),src.toString(),gaInfo.dpt,gaInfo.getTextutal(),now,gaInfo.lastValueTimestamp);
+					gaInfo.translateAndStoreValue(asdu,src.getRawAddress(),now);
+					// The answer to a read we sent is always published, whatever the policy says. A response
+					// after the read timed out is unsolicited as far as we're concerned
+					long readRequested=gaInfo.readRequestTimestamp;
+					boolean answered=response && readRequested!=0 && now-readRequested<readTimeout;
+					if(response && readRequested!=0)
+						gaInfo.readRequestTimestamp=0;
+					if(gaInfo.shouldPublish(now,answered))
+						MQTTHandler.publish(gaInfo,gaInfo.getTextutal(asdu),now);
+					else if(L.isLoggable(Level.FINEST))
+						L.finest("Publish policy suppressed "+gaInfo.getTextutal(asdu)+" to "+gaInfo.name);
 				}
 			}
 			catch(KNXException e)
 			{
+				translationErrorsMetric.inc();
 				L.log(Level.WARNING,"Error converting ASDU to "+dest+" from "+src);
 			}
 
@@ -171,34 +303,167 @@ public class KNXConnector extends Thread implements NetworkLinkListener
 		public void groupReadResponse(ProcessEvent pe)
 		{
 			/* Handle this like a GroupWrite */
-			groupWrite(pe);
+			processGroupTelegram(pe,true);
 		}
 
 	}
 	ProcessListener processListener=new MyProcessListener();
 
+	/* Also taken by everything else which works on the ValueStore, see ValueStore */
+	static final Object ingestLock=new Object();
+	/* Only used with multiple links, under the ingest lock */
+	private static DuplicateFilter duplicateFilter;
+	/* For each group address, the number of the link its telegrams were last seen on first, 0 if unknown */
+	private static byte learnedLink[];
+	private static final Metrics.Counter duplicatesMetric=Metrics.counter("knx/duplicates");
+
+	/*
+	 * Link supervision. linkClosed() wakes up the connection thread, which reconnects right
+	 * away. If that fails, the next gateway of knx.ip is tried immediately; only once all of
+	 * them failed, we back off exponentially from knx.reconnectdelay up to knx.reconnectmaxdelay.
+	 * The delays are jittered, so bridges sharing a gateway don't retry in lockstep.
+	 *
+	 * While connected to any but the first gateway, the first one is probed with a description
+	 * request every knx.failbackinterval seconds, and the link is moved back once it answers.
+	 */
+	private final Object linkState=new Object();
+	/* Only guards against a close we don't get an event for */
+	private static final long SUPERVISION_INTERVAL=5000;
+	/* Seconds to wait for the first gateway's description response */
+	private static final int FAILBACK_PROBE_TIMEOUT=2;
+	private final Random jitter=new Random();
+
+	/*
+	 * Returns once the link has closed, or when it should fail back to the first gateway
+	 */
+	private void awaitLinkClosed() throws InterruptedException
+	{
+		long failbackInterval=Long.parseLong(getProperty("failbackinterval","300"))*1000;
+		long nextProbe=System.currentTimeMillis()+failbackInterval;
+		for(;;)
+		{
+			synchronized(linkState)
+			{
+				if(!isLinkOpen())
+					return;
+				linkState.wait(SUPERVISION_INTERVAL);
+				if(!isLinkOpen())
+					return;
+			}
+			if(gateway!=0 && failbackInterval>0 && System.currentTimeMillis()>=nextProbe)
+			{
+				if(isFirstGatewayAvailable())
+				{
+					L.info("Link "+index+" failing back from "+gateways[gateway]+" to "+gateways[0]);
+					gateway=0;
+					return;
+				}
+				nextProbe=System.currentTimeMillis()+failbackInterval;
+			}
+		}
+	}
+
+	private boolean isFirstGatewayAvailable()
+	{
+		try
+		{
+			Discoverer d=new Discoverer(getLocalAddress().getAddress(),0,false,false);
+			d.getDescription(getGatewayAddress(0),FAILBACK_PROBE_TIMEOUT);
+			return true;
+		}
+		catch(Exception e)
+		{
+			L.fine("Gateway "+gateways[0]+" is still unavailable for link "+index+": "+e);
+			return false;
+		}
+	}
+
+	private void awaitLinkOpen() throws InterruptedException
+	{
+		synchronized(linkState)
+		{
+			while(!isLinkOpen())
+				linkState.wait();
+		}
+	}
+
+	private void closeLink()
+	{
+		if(pc!=null)
+		{
+			pc.detach();
+			pc=null;
+		}
+		KNXNetworkLink l=link;
+		if(l!=null)
+			l.close();
+	}
+
+	/*
+	 * Move on to the next gateway after the given number of consecutive failed attempts
+	 *
+	 * @return the time to wait in milliseconds before trying it
+	 */
+	private long failover(int failures)
+	{
+		if(gateways.length>1)
+		{
+			gateway=(gateway+1)%gateways.length;
+			if(failures%gateways.length!=0)
+				return 0;
+		}
+		long initialDelay=Long.parseLong(getProperty("reconnectdelay","250"));
+		long maxDelay=Long.parseLong(getProperty("reconnectmaxdelay","30000"));
+		int rounds=(failures-1)/gateways.length;
+		long delay=Math.min(maxDelay,initialDelay<<Math.min(rounds,20));
+		// Somewhere between half and the full delay
+		return delay/2+(long)(jitter.nextDouble()*(delay/2+1));
+	}
+
 	@Override
 	public void run()
 	{
+		boolean everConnected=false;
+		int failures=0;
+		long closedAt=0;
 		for(;;)
 		{
 			try
 			{
 				connect();
-				while(link.isOpen())
-					Thread.sleep(1000);
+				failures=0;
+				// Only a link which is up on a different gateway than before has switched. Moving
+				// away from the first gateway is a failover, returning to it a failback
+				if(connectedGateway>=0 && gateway!=connectedGateway)
+				{
+					if(gateway==0)
+						failbacksMetric.inc();
+					else
+						failoversMetric.inc();
+				}
+				connectedGateway=gateway;
+				if(everConnected)
+				{
+					long downtime=System.currentTimeMillis()-closedAt;
+					reconnectsMetric.inc();
+					reconnectTimeMetric.record(downtime);
+					L.info("Link "+index+" reconnected to "+gateways[gateway]+" after "+downtime+"ms");
+				}
+				everConnected=true;
+				if(resync!=null)
+					resync.request(this);
+				awaitLinkClosed();
+				closedAt=System.currentTimeMillis();
+				closeLink();
 			}
 			catch(Exception e)
 			{
-				L.log(Level.WARNING,"Error in KNX connection, will retry in 10s",e);
+				long delay=failover(++failures);
+				L.log(Level.WARNING,"Error in KNX connection "+index+", will try "+gateways[gateway]+" in "+delay+"ms",e);
 				try
 				{
-					Thread.sleep(5*1000);
-					if(pc!=null)
-						pc.detach();
-					if(link!=null)
-						link.close();
-					Thread.sleep(5*1000);
+					closeLink();
+					Thread.sleep(delay);
 				}
 				catch(Exception e1)
 				{
@@ -208,22 +473,388 @@ public class KNXConnector extends Thread implements NetworkLinkListener
 		}
 	}
 
-	private KNXConnector()
+	private KNXConnector(int index)
+	{
+		super(index==1 ? "KNX Connection Thread" : "KNX Connection Thread "+index);
+		this.index=index;
+		configPrefix=index==1 ? "knx2mqtt.knx." : "knx2mqtt.knx."+index+".";
+		ownedRanges=parseGroupAddressRanges(getProperty("groupaddresses",""));
+		List<String> gw=new ArrayList<>();
+		for(String ip:getProperty("ip","setme").split(","))
+			if(ip.trim().length()!=0)
+				gw.add(ip.trim());
+		if(gw.isEmpty())
+			throw new IllegalArgumentException(configPrefix+"ip must be set to the address of a KNXnet/IP interface or router");
+		gateways=gw.toArray(new String[gw.size()]);
+		setupPacing();
+	}
+
+	/*
+	 * Parse a comma-separated list of group addresses or ranges of them, like "1/2/3-1/2/10".
+	 * Incomplete addresses cover everything below them, so "1" is 1/0/0-1/7/255 and "1/2"
+	 * is 1/2/0-1/2/255
+	 */
+	private static int[] parseGroupAddressRanges(String spec)
+	{
+		List<String> items=new ArrayList<>();
+		for(String item:spec.split(","))
+			if(item.trim().length()!=0)
+				items.add(item.trim());
+		int ranges[]=new int[items.size()*2];
+		for(int ix=0;ix<items.size();ix++)
+		{
+			String fromTo[]=items.get(ix).split("-",2);
+			ranges[ix*2]=parseGroupAddressBound(fromTo[0],false);
+			ranges[ix*2+1]=parseGroupAddressBound(fromTo[fromTo.length-1],true);
+		}
+		return ranges;
+	}
+
+	private static int parseGroupAddressBound(String ga,boolean upper)
+	{
+		String parts[]=ga.trim().split("/");
+		if(parts.length>3)
+			throw new IllegalArgumentException("Invalid group address '"+ga+"'");
+		int main=Integer.parseInt(parts[0]);
+		int middle=parts.length>1 ? Integer.parseInt(parts[1]) : (upper ? 7 : 0);
+		int sub=parts.length>2 ? Integer.parseInt(parts[2]) : (upper ? 255 : 0);
+		if(main>31 || middle>7 || sub>255)
+			throw new IllegalArgumentException("Invalid group address '"+ga+"'");
+		return (main<<11)|(middle<<8)|sub;
+	}
+
+	private boolean owns(int rawAddress)
+	{
+		for(int ix=0;ix<ownedRanges.length;ix+=2)
+			if(rawAddress>=ownedRanges[ix] && rawAddress<=ownedRanges[ix+1])
+				return true;
+		return false;
+	}
+
+	/*
+	 * The configured links. Created when the class is loaded, so requests can be queued
+	 * before we're launched
+	 */
+	private static final List<KNXConnector> connectors=createConnectors();
+
+	private static List<KNXConnector> createConnectors()
+	{
+		List<KNXConnector> l=new ArrayList<>();
+		try
+		{
+			l.add(new KNXConnector(1));
+			for(int ix=2;System.getProperty("knx2mqtt.knx."+ix+".ip")!=null;ix++)
+				l.add(new KNXConnector(ix));
+		}
+		catch(IllegalArgumentException e)
+		{
+			L.log(Level.SEVERE,"Invalid KNX configuration: "+e.getMessage());
+			System.exit(1);
+		}
+		if(l.size()>1)
+		{
+			duplicateFilter=new DuplicateFilter(Long.getLong("knx2mqtt.knx.dedupewindow",500).longValue());
+			learnedLink=new byte[65536];
+		}
+		return Collections.unmodifiableList(l);
+	}
+
+	/**
+	 * Determine the link to send requests for a group address on: the link it was assigned to
+	 * with knx.groupaddresses, otherwise the link its telegrams arrive on first, otherwise the
+	 * first link
+	 */
+	static KNXConnector route(GroupAddressInfo gai)
 	{
-		super("KNX Connection Thread");
+		if(connectors.size()==1)
+			return connectors.get(0);
+		for(KNXConnector c:connectors)
+			if(c.owns(gai.rawAddress))
+				return c;
+		int learned=learnedLink[gai.rawAddress];
+		if(learned!=0)
+			return connectors.get(learned-1);
+		return connectors.get(0);
 	}
 
-	private static KNXConnector conn;
 	public static void launch()
 	{
-		conn=new KNXConnector();
-		conn.start();
+		if(Boolean.getBoolean("knx2mqtt.knx.resync"))
+		{
+			resync=new Resync();
+			resync.start();
+		}
+		for(KNXConnector c:connectors)
+		{
+			c.startPacing();
+			c.start();
+			c.new Sender().start();
+		}
+	}
+
+	/* Only set when knx.resync is enabled */
+	private static Resync resync;
+
+	/**
+	 * Read the values of all group addresses from the bus again, e.g. because
+	 * the MQTT side lost its state. Does nothing unless knx.resync is enabled.
+	 */
+	public static void requestResync()
+	{
+		if(resync!=null)
+			resync.request(null);
+	}
+
+	boolean isLinkOpen()
+	{
+		KNXNetworkLink l=link;
+		return l!=null && l.isOpen();
+	}
+
+	/*
+	 * Outgoing telegrams are paced by a token bucket. Its rate adapts to the measured
+	 * load caused by other devices, so that we only use the headroom the medium has left.
+	 */
+	private TokenBucket sendBucket;
+	private double busRate;
+	private double maxSendRate;
+	private static final double MIN_SEND_RATE=2;
+	private static final double TARGET_BUS_UTILISATION=0.8;
+	private final AtomicInteger observedTelegrams=new AtomicInteger();
+	private volatile double busLoad;
+
+	private void setupPacing()
+	{
+		// TP1 manages about 40-50 telegrams/s. A router on the IP backbone can take more, but
+		// typically feeds into TP1 lines itself and limits accordingly
+		boolean routing="ROUTING".equals(getProperty("type",null));
+		busRate=Double.parseDouble(getProperty("busrate",routing?"50":"40"));
+		maxSendRate=Double.parseDouble(getProperty("sendrate",String.valueOf(busRate/2)));
+		double burst=Double.parseDouble(getProperty("sendburst","10"));
+		sendBucket=new TokenBucket(maxSendRate,burst);
+
+		int pipeline=Integer.parseInt(getProperty("pipeline","1"));
+		if(pipeline>1)
+			tracker=new ConfirmationTracker(pipeline,Long.parseLong(getProperty("confirmtimeout","3000")));
+	}
+
+	/*
+	 * Pacing has its own timer, so it keeps running while the shared one is busy,
+	 * e.g. with MQTT reconnects
+	 */
+	private static final Timer pacingTimer=new Timer("KNX Pacing Timer",true);
+
+	private void startPacing()
+	{
+		pacingTimer.schedule(new BusLoadMonitor(),1000,1000);
+		String metricsPrefix=index==1 ? "knx/" : "knx/"+index+"/";
+		Metrics.gauge(metricsPrefix+"bus_load",new Metrics.Gauge() {
+			@Override
+			public long get()
+			{
+				return Math.round(busLoad);
+			}
+		});
+		Metrics.gauge(metricsPrefix+"write_queue_depth",new Metrics.Gauge() {
+			@Override
+			public long get()
+			{
+				return writeQueue.size();
+			}
+		});
+		Metrics.gauge(metricsPrefix+"write_queue_coalesced",new Metrics.Gauge() {
+			@Override
+			public long get()
+			{
+				return writeQueue.getCoalesced();
+			}
+		});
+
+		if(tracker!=null)
+		{
+			long timeout=Long.parseLong(getProperty("confirmtimeout","3000"));
+			pacingTimer.schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					tracker.expire();
+				}
+			},timeout,timeout);
+		}
+	}
+
+	/*
+	 * Only set in pipelined mode, where we don't wait for each telegram's confirmation
+	 */
+	private ConfirmationTracker tracker;
+
+	private void send(GroupAddressInfo gai,byte apdu[],String description) throws KNXException, InterruptedException
+	{
+		GroupAddress ga=new GroupAddress(gai.rawAddress);
+		if(tracker==null)
+		{
+			link.sendRequestWait(ga, gai.priority, apdu);
+			sentMetric.inc();
+			return;
+		}
+		tracker.acquire();
+		// Record before sending, the confirmation might be faster than we are
+		tracker.sent(gai.rawAddress,apdu,description);
+		try
+		{
+			link.sendRequest(ga, gai.priority, apdu);
+			sentMetric.inc();
+		}
+		catch(KNXException e)
+		{
+			tracker.sendFailed(gai.rawAddress);
+			throw e;
+		}
+	}
+
+	private class BusLoadMonitor extends TimerTask
+	{
+		private long lastRun=System.currentTimeMillis();
+
+		@Override
+		public void run()
+		{
+			long now=System.currentTimeMillis();
+			double current=observedTelegrams.getAndSet(0)*1000.0/Math.max(1,now-lastRun);
+			lastRun=now;
+			// Smooth out short bursts
+			busLoad=busLoad*0.7+current*0.3;
+			double rate=Math.max(MIN_SEND_RATE,Math.min(maxSendRate,busRate*TARGET_BUS_UTILISATION-busLoad));
+			if(Math.abs(rate-sendBucket.getRate())>=0.5)
+			{
+				sendBucket.setRate(rate);
+				L.fine("Bus load on link "+index+" is "+Math.round(busLoad)+" telegrams/s, pacing outgoing telegrams to "+Math.round(rate)+"/s");
+			}
+		}
+	}
+
+	private final GroupWriteQueue writeQueue=new GroupWriteQueue();
+
+	/**
+	 * Queue a group write. Returns immediately; a newer write to the same group
+	 * address replaces a still pending one.
+	 */
+	public static void queueGroupWrite(GroupAddressInfo gai,String val)
+	{
+		route(gai).writeQueue.queueWrite(gai,val);
+	}
+
+	private static final long readCacheTime=Long.getLong("knx2mqtt.knx.readcache",0).longValue();
+	static final long readTimeout=Long.getLong("knx2mqtt.knx.readtimeout",2000).longValue();
+
+	/**
+	 * Queue a group read. Returns immediately.
+	 *
+	 * If a value was received recently enough, it's republished from the cache instead,
+	 * and if a read for the group address is already awaiting its response, no
+	 * additional read is sent; the response will be published anyway.
+	 */
+	public static void queueGroupRead(GroupAddressInfo gai)
+	{
+		long now=System.currentTimeMillis();
+		if(readCacheTime>0)
+		{
+			// The value, its timestamps and the textual representation must all be of the same telegram
+			synchronized(ingestLock)
+			{
+				long lastUpdate=ValueStore.getLastUpdate(gai.rawAddress);
+				if(lastUpdate!=0 && now-lastUpdate<=readCacheTime && ValueStore.getType(gai.rawAddress)!=ValueStore.TYPE_NONE)
+				{
+					try
+					{
+						// Published with the time it was received, it's not a fresh reading
+						MQTTHandler.publish(gai,gai.getCachedTextual(),lastUpdate);
+						L.fine("Served read from "+gai.address+" from cache, value is "+(now-lastUpdate)+"ms old");
+						return;
+					}
+					catch(KNXException e)
+					{
+						L.log(Level.WARNING,"Unable to serve read from "+gai.address+" from cache, reading from bus",e);
+					}
+				}
+			}
+		}
+		long pendingSince=gai.readRequestTimestamp;
+		if(pendingSince!=0 && now-pendingSince<readTimeout)
+		{
+			L.fine("Read from "+gai.address+" already in progress, not sending another one");
+			return;
+		}
+		route(gai).writeQueue.queueRead(gai);
+	}
+
+	/*
+	 * Queue a read on this link, bypassing the read cache and deduplication
+	 */
+	void queueRead(GroupAddressInfo gai)
+	{
+		writeQueue.queueRead(gai);
+	}
+
+	int getQueuedRequests()
+	{
+		return writeQueue.size();
+	}
+
+	/**
+	 * @return the number of queued requests, over all links
+	 */
+	public static int getWriteQueueDepth()
+	{
+		int depth=0;
+		for(KNXConnector c:connectors)
+			depth+=c.writeQueue.size();
+		return depth;
+	}
+
+	/*
+	 * Drains the write queue onto the bus, so the MQTT side is never held up by KNX.
+	 * While the link is down, requests stay queued; a request which failed because the
+	 * link closed during sending is sent again after reconnecting.
+	 */
+	private class Sender extends Thread
+	{
+		Sender()
+		{
+			super(index==1 ? "KNX Sender Thread" : "KNX Sender Thread "+index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			for(;;)
+			{
+				try
+				{
+					GroupWriteQueue.Request r=writeQueue.take();
+					for(;;)
+					{
+						// Hold on to the request until we have a link to send it on
+						awaitLinkOpen();
+						sendBucket.acquire();
+						if(r.write ? doGroupWrite(r.gai,r.value) : doGroupRead(r.gai))
+							break;
+						L.info("Link "+index+" closed while sending "+r+", will send it again after reconnecting");
+					}
+				}
+				catch(InterruptedException ie)
+				{
+					return;
+				}
+			}
+		}
 	}
 
 	/* This is straight from Calimero / ProcessCommunicatorImpl */
-	private static final int GROUP_READ = 0x00;
-	private static final int GROUP_WRITE = 0x80;
-	private static byte[] createGroupAPDU(final int service, final DPTXlator t)
+	static final int GROUP_READ = 0x00;
+	static final int GROUP_WRITE = 0x80;
+	static byte[] createGroupAPDU(final int service, final DPTXlator t)
 	{
 		// check for group read
 		if (service == 0x00)
@@ -239,44 +870,52 @@ public class KNXConnector extends Thread implements NetworkLinkListener
 		return t.getData(buf, offset);
 	}
 
-	public static void doGroupWrite(String gaspec,String val,GroupAddressInfo gai)
+	/*
+	 * A send which failed because the link closed is to be retried after reconnecting
+	 */
+	private boolean isLinkFailure(Exception e)
+	{
+		return e instanceof KNXLinkClosedException || !isLinkOpen();
+	}
+
+	/*
+	 * @return false if the write failed because the link closed
+	 */
+	private boolean doGroupWrite(GroupAddressInfo gai,String val)
 	{
 		try
 		{
-			GroupAddress ga=new GroupAddress(gaspec);
-
-			// We do special handling for booleans
-			if(gai.xlator instanceof DPTXlatorBoolean)
-			{
-				if("0".equals(val))
-					((DPTXlatorBoolean)gai.xlator).setValue(false);
-				else if("1".equals(val))
-					((DPTXlatorBoolean)gai.xlator).setValue(true);
-				else
-					gai.xlator.setValue(val);
-			}
-			else
-				gai.xlator.setValue(val);
-			conn.link.sendRequestWait(ga, Priority.LOW, createGroupAPDU(GROUP_WRITE, gai.xlator));
+			send(gai, gai.encodeGroupWrite(val), "write of "+val+" to "+gai.address);
 		}
 		catch(Exception e)
 		{
-			conn.L.log(Level.WARNING,"Error when writing "+val+" to "+gaspec,e);
+			if(isLinkFailure(e))
+				return false;
+			sendErrorsMetric.inc();
+			L.log(Level.WARNING,"Error when writing "+val+" to "+gai.address,e);
 		}
+		return true;
 	}
 
-	public static void doGroupRead(String gaspec,String val,GroupAddressInfo gai)
+	/*
+	 * @return false if the read failed because the link closed
+	 */
+	private boolean doGroupRead(GroupAddressInfo gai)
 	{
 		try
 		{
-			GroupAddress ga=new GroupAddress(gaspec);
-			conn.link.sendRequestWait(ga, Priority.LOW, DataUnitBuilder.createLengthOptimizedAPDU(GROUP_READ, null));
-			conn.L.log(Level.INFO,"Sent read request for "+gaspec);
+			gai.readRequestTimestamp=System.currentTimeMillis();
+			send(gai, DataUnitBuilder.createLengthOptimizedAPDU(GROUP_READ, null), "read from "+gai.address);
+			L.log(Level.INFO,"Sent read request for "+gai.address+" via link "+index);
 		}
 		catch(Exception e)
 		{
-			conn.L.log(Level.WARNING,"Error when reading from "+gaspec,e);
+			if(isLinkFailure(e))
+				return false;
+			sendErrorsMetric.inc();
+			L.log(Level.WARNING,"Error when reading from "+gai.address,e);
 		}
+		return true;
 	}
 
 }
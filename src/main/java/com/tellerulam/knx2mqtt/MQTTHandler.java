@@ -1,5 +1,6 @@
 package com.tellerulam.knx2mqtt;
 
+import java.io.*;
 import java.nio.charset.*;
 import java.util.*;
 import java.util.logging.*;
@@ -7,7 +8,6 @@ import java.util.logging.*;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.*;
 
-import com.eclipsesource.json.*;
 import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
 
 public class MQTTHandler
@@ -21,17 +21,43 @@ public class MQTTHandler
 	}
 
 	private final String topicPrefix;
-	private MQTTHandler()
+	private final PublishQueue publishQueue;
+	private final int publishBatchSize;
+	private final long metricsInterval;
+	/* Only set when mqtt.journal is configured */
+	private OutboundJournal journal;
+	/* Only set when mqtt.snapshot is enabled, used by the timer thread */
+	private Snapshot snapshot;
+
+	private static final Metrics.Counter publishedMetric=Metrics.counter("mqtt/published");
+	private static final Metrics.Counter reconnectsMetric=Metrics.counter("mqtt/reconnects");
+	/* From queueing a converted telegram until it's handed to the MQTT client */
+	private static final Metrics.Histogram knxToMqttLatency=Metrics.histogram("latency/knx_to_mqtt","us");
+	/* From handing a message to the MQTT client until it was delivered */
+	private static final Metrics.Histogram publishLatency=Metrics.histogram("latency/mqtt_publish","us");
+	private static final Metrics.Counter replayedMetric=Metrics.counter("mqtt/journal_replayed");
+
+	/* Package-private for the benchmarks */
+	MQTTHandler()
+	{
+		topicPrefix=getTopicPrefix();
+		PublishQueue.OverflowPolicy overflow=PublishQueue.OverflowPolicy.valueOf(System.getProperty("knx2mqtt.mqtt.queueoverflow","COALESCE"));
+		publishQueue=new PublishQueue(Integer.getInteger("knx2mqtt.mqtt.queuesize",1024).intValue(),overflow);
+		publishBatchSize=Integer.getInteger("knx2mqtt.mqtt.batchsize",64).intValue();
+		metricsInterval=Long.getLong("knx2mqtt.mqtt.metricsinterval",0).longValue()*1000;
+	}
+
+	static String getTopicPrefix()
 	{
 		String tp=System.getProperty("knx2mqtt.mqtt.topic","knx");
 		if(!tp.endsWith("/"))
 			tp+="/";
-		topicPrefix=tp;
+		return tp;
 	}
 
 	private static MQTTHandler instance;
 
-	private MqttClient mqttc;
+	private MqttAsyncClient mqttc;
 
 	private void queueConnect()
 	{
@@ -55,9 +81,95 @@ public class MQTTHandler
 				L.warning("Should be connected but aren't, reconnecting");
 				queueConnect();
 			}
+			L.fine("Publish queue depth "+publishQueue.size()+", "+publishQueue.getDropped()+" messages dropped due to overflow, write queue depth "+KNXConnector.getWriteQueueDepth());
+		}
+	}
+
+	/*
+	 * Publishes all metrics to prefix/metrics/...
+	 */
+	private class MetricsReporter extends TimerTask
+	{
+		private final JsonPayloadWriter w=new JsonPayloadWriter();
+
+		@Override
+		public void run()
+		{
+			if(!mqttc.isConnected())
+				return;
+			long now=System.currentTimeMillis();
+			for(Map.Entry<String,Metrics.Metric> m:Metrics.getMetrics())
+			{
+				w.reset();
+				m.getValue().render(w,now);
+				try
+				{
+					mqttc.publish(topicPrefix+"metrics/"+m.getKey(),w.toByteArray(),0,false);
+				}
+				catch(MqttException mqe)
+				{
+					L.log(Level.FINE,"Error when publishing metric "+m.getKey(),mqe);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Publishes the snapshot of all values to prefix/snapshot, or the values updated since
+	 * the last one to prefix/snapshot/delta
+	 */
+	private class SnapshotPublisher extends TimerTask
+	{
+		private final boolean delta;
+
+		SnapshotPublisher(boolean delta)
+		{
+			this.delta=delta;
+		}
+
+		@Override
+		public void run()
+		{
+			if(!mqttc.isConnected())
+				return;
+			long now=System.currentTimeMillis();
+			try
+			{
+				byte payload[]=delta ? snapshot.delta(now) : snapshot.full(now);
+				if(payload==null)
+					return;
+				if(delta)
+					mqttc.publish(topicPrefix+"snapshot/delta",payload,0,false);
+				else
+					mqttc.publish(topicPrefix+"snapshot",payload,0,true);
+				if(L.isLoggable(Level.FINE))
+					L.fine("Published "+(delta?"delta ":"")+"snapshot of "+payload.length+" bytes in "+(System.currentTimeMillis()-now)+"ms");
+			}
+			catch(IOException | MqttException e)
+			{
+				L.log(Level.WARNING,"Error when publishing snapshot",e);
+			}
 		}
 	}
 
+	/*
+	 * Records the delivery latency of published messages, the user context being
+	 * the System.nanoTime() of the publish call
+	 */
+	private static final IMqttActionListener publishLatencyRecorder=new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken token)
+		{
+			publishLatency.recordSince(((Long)token.getUserContext()).longValue());
+		}
+		@Override
+		public void onFailure(IMqttToken token, Throwable t)
+		{
+			/* Intentionally ignored, the publisher logs failures */
+		}
+	};
+
+	private boolean everConnected;
 	private boolean shouldBeConnected;
 	private static boolean knxConnectionState;
 
@@ -76,11 +188,10 @@ public class MQTTHandler
 			return;
 		}
 		L.fine("Name "+namePart+" translates to GA "+gai.address);
-		String data=new String(msg.getPayload(),StandardCharsets.UTF_8);
 		if(set)
-			KNXConnector.doGroupWrite(gai.address, data, gai);
+			KNXConnector.queueGroupWrite(gai,new String(msg.getPayload(),StandardCharsets.UTF_8));
 		else
-			KNXConnector.doGroupRead(gai.address, data, gai);
+			KNXConnector.queueGroupRead(gai);
 	}
 
 	void processMessage(String topic,MqttMessage msg)
@@ -91,11 +202,20 @@ public class MQTTHandler
 			processSetGet(topic.substring(4),msg,true);
 		else if(topic.startsWith("get/"))
 			processSetGet(topic.substring(4),msg,false);
+		else if(topic.equals("snapshot/get") && snapshot!=null && !msg.isRetained())
+			// Snapshots are only ever rendered on the timer thread
+			Main.t.schedule(new SnapshotPublisher(false),0);
 		else
 			L.warning("Ignored message "+msg+" to unknown topic "+topic);
 	}
 
 
+	/*
+	 * How long we wait for the broker. doConnect() runs on the shared timer, which must
+	 * not be blocked for long
+	 */
+	private static final int CONNECT_TIMEOUT=10;
+
 	private void doConnect()
 	{
 		L.info("Connecting to MQTT broker "+mqttc.getServerURI()+" with CLIENTID="+mqttc.getClientId()+" and TOPIC PREFIX="+topicPrefix);
@@ -103,16 +223,26 @@ public class MQTTHandler
 		MqttConnectOptions copts=new MqttConnectOptions();
 		copts.setWill(topicPrefix+"connected", "0".getBytes(), 1, true);
 		copts.setCleanSession(true);
+		copts.setConnectionTimeout(CONNECT_TIMEOUT);
 		try
 		{
-			mqttc.connect(copts);
+			mqttc.connect(copts).waitForCompletion(CONNECT_TIMEOUT*1000);
 			sendConnectionState();
 			L.info("Successfully connected to broker, subscribing to "+topicPrefix+"(set|get)/#");
 			try
 			{
-				mqttc.subscribe(topicPrefix+"set/#",1);
-				mqttc.subscribe(topicPrefix+"get/#",1);
+				mqttc.subscribe(topicPrefix+"set/#",1).waitForCompletion(CONNECT_TIMEOUT*1000);
+				mqttc.subscribe(topicPrefix+"get/#",1).waitForCompletion(CONNECT_TIMEOUT*1000);
+				if(snapshot!=null)
+					mqttc.subscribe(topicPrefix+"snapshot/get",1).waitForCompletion(CONNECT_TIMEOUT*1000);
 				shouldBeConnected=true;
+				if(everConnected)
+				{
+					reconnectsMetric.inc();
+					// We've got a clean session, so whoever relies on us may have missed updates
+					KNXConnector.requestResync();
+				}
+				everConnected=true;
 			}
 			catch(MqttException mqe)
 			{
@@ -131,7 +261,21 @@ public class MQTTHandler
 	{
 		String server=System.getProperty("knx2mqtt.mqtt.server","tcp://localhost:1883");
 		String clientID=System.getProperty("knx2mqtt.mqtt.clientid","knx2mqtt");
-		mqttc=new MqttClient(server,clientID,new MemoryPersistence());
+		mqttc=new MqttAsyncClient(server,clientID,new MemoryPersistence());
+		if(Boolean.getBoolean("knx2mqtt.mqtt.snapshot"))
+			snapshot=new Snapshot();
+		String journalFile=System.getProperty("knx2mqtt.mqtt.journal");
+		if(journalFile!=null)
+		{
+			try
+			{
+				journal=new OutboundJournal(new File(journalFile),Integer.getInteger("knx2mqtt.mqtt.journalsize",4096).intValue()*1024);
+			}
+			catch(IOException e)
+			{
+				L.log(Level.SEVERE,"Unable to open journal file "+journalFile+", messages will be lost during broker outages",e);
+			}
+		}
 		mqttc.setCallback(new MqttCallback() {
 			@Override
 			public void messageArrived(String topic, MqttMessage msg) throws Exception
@@ -159,36 +303,276 @@ public class MQTTHandler
 		});
 		doConnect();
 		Main.t.schedule(new StateChecker(),30*1000,30*1000);
+		Metrics.gauge("mqtt/publish_queue_depth",new Metrics.Gauge() {
+			@Override
+			public long get()
+			{
+				return publishQueue.size();
+			}
+		});
+		Metrics.gauge("mqtt/dropped",new Metrics.Gauge() {
+			@Override
+			public long get()
+			{
+				return publishQueue.getDropped();
+			}
+		});
+		if(journal!=null)
+		{
+			Metrics.gauge("mqtt/journal_size",new Metrics.Gauge() {
+				@Override
+				public long get()
+				{
+					return journal.size();
+				}
+			});
+			Metrics.gauge("mqtt/journal_dropped",new Metrics.Gauge() {
+				@Override
+				public long get()
+				{
+					return journal.getDropped();
+				}
+			});
+		}
+		if(metricsInterval>0)
+			Main.t.schedule(new MetricsReporter(),metricsInterval,metricsInterval);
+		if(snapshot!=null)
+		{
+			long snapshotInterval=Long.getLong("knx2mqtt.mqtt.snapshotinterval",300).longValue()*1000;
+			if(snapshotInterval>0)
+				Main.t.schedule(new SnapshotPublisher(false),snapshotInterval,snapshotInterval);
+			long deltaInterval=Long.getLong("knx2mqtt.mqtt.snapshotdelta",0).longValue()*1000;
+			if(deltaInterval>0)
+				Main.t.schedule(new SnapshotPublisher(true),deltaInterval,deltaInterval);
+		}
+		new Publisher().start();
+	}
+
+	/*
+	 * Drains the publish queue in batches. The messages of a batch are handed to the
+	 * asynchronous client in one go, and we only wait for the last one to go out
+	 * before taking the next batch, so a slow broker backs up into the queue
+	 * instead of into the KNX listener.
+	 *
+	 * With a journal, messages go into the journal while the broker is unreachable,
+	 * and also while there still are journaled messages, so that nothing overtakes them.
+	 * Once we're connected again, the journal is replayed before the next batch.
+	 */
+	private class Publisher extends Thread
+	{
+		Publisher()
+		{
+			super("MQTT Publisher Thread");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			PublishQueue.Entry batch[]=PublishQueue.createBatch(publishBatchSize);
+			for(;;)
+			{
+				try
+				{
+					int n;
+					if(journal!=null && !journal.isEmpty())
+					{
+						// Check back regularly, we need to replay as soon as we're connected
+						if(mqttc.isConnected())
+							replayJournal();
+						n=publishQueue.drainTo(batch,1000);
+					}
+					else
+						n=publishQueue.drainTo(batch);
+					IMqttDeliveryToken lastToken=null;
+					for(int ix=0;ix<n;ix++)
+					{
+						PublishQueue.Entry e=batch[ix];
+						IMqttDeliveryToken token=doPublish(e);
+						if(token!=null)
+							lastToken=token;
+					}
+					if(lastToken!=null)
+						lastToken.waitForCompletion(10*1000);
+				}
+				catch(InterruptedException ie)
+				{
+					return;
+				}
+				catch(Exception e)
+				{
+					L.log(Level.WARNING,"Error in publisher thread",e);
+				}
+			}
+		}
 	}
 
-	private void doPublish(String name, Object val, String src,String dpt,String textual, long updateTime, long lastChange)
+	private static final byte[] FRAGMENT_TS="{\"ts\":".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FRAGMENT_LC=",\"lc\":".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FRAGMENT_SRC=",\"knx_src_addr\":\"".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FRAGMENT_TEXTUAL=",\"knx_textual\":".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FRAGMENT_VAL=",\"val\":".getBytes(StandardCharsets.US_ASCII);
+
+	/* Only used by the publisher thread */
+	private final JsonPayloadWriter payloadWriter=new JsonPayloadWriter();
+	private final BinaryPayloadWriter cborWriter=new BinaryPayloadWriter(PayloadFormat.Encoding.CBOR);
+	private final BinaryPayloadWriter msgpackWriter=new BinaryPayloadWriter(PayloadFormat.Encoding.MSGPACK);
+
+	/**
+	 * Render the JSON status message for a queued entry into w
+	 *
+	 * @param compact only render val, ts and lc
+	 */
+	static void renderPayload(PublishQueue.Entry e,JsonPayloadWriter w,boolean compact)
+	{
+		w.reset();
+		w.raw(FRAGMENT_TS).number(e.updateTime);
+		w.raw(FRAGMENT_LC).number(e.lastChange);
+		if(compact)
+		{
+			w.raw(FRAGMENT_VAL).value(e.valType,e.valBits,e.valString);
+			w.raw("}");
+			return;
+		}
+		// Individual address, area.line.device
+		w.raw(FRAGMENT_SRC).number(e.src>>12).raw(".").number((e.src>>8)&0x0f).raw(".").number(e.src&0xff).raw("\"");
+		if(e.gai!=null)
+			w.raw(e.gai.dptFragment);
+		else
+			w.raw(",\"knx_dpt\":").string(e.dpt);
+		if(e.textual!=null)
+			w.raw(FRAGMENT_TEXTUAL).string(e.textual);
+		w.raw(FRAGMENT_VAL).value(e.valType,e.valBits,e.valString);
+		w.raw("}");
+	}
+
+	/**
+	 * Render the status message for a queued entry into w, as a map with the same
+	 * members as the JSON object
+	 *
+	 * @param compact only render val, ts and lc
+	 */
+	static void renderPayload(PublishQueue.Entry e,BinaryPayloadWriter w,boolean compact)
 	{
-		JsonObject jso=new JsonObject();
-		jso.add("ts",updateTime).add("lc",lastChange).add("knx_src_addr",src).add("knx_dpt",dpt);
-		if(textual!=null)
-			jso.add("knx_textual",textual);
-		if(val instanceof Integer)
-			jso.add("val",((Integer)val).intValue());
-		else if(val instanceof Number)
-			jso.add("val",((Number)val).doubleValue());
+		w.reset();
+		if(compact)
+			w.mapHeader(3);
 		else
-			jso.add("val",val.toString());
-		String txtmsg=jso.toString();
-		MqttMessage msg=new MqttMessage(jso.toString().getBytes(StandardCharsets.UTF_8));
-		msg.setQos(0);
-		msg.setRetained(true);
+			w.mapHeader(e.textual!=null ? 6 : 5);
+		w.string("ts").number(e.updateTime);
+		w.string("lc").number(e.lastChange);
+		if(!compact)
+		{
+			w.string("knx_src_addr").individualAddress(e.src);
+			w.string("knx_dpt");
+			if(e.dpt!=null)
+				w.string(e.dpt);
+			else
+				w.nil();
+			if(e.textual!=null)
+				w.string("knx_textual").string(e.textual);
+		}
+		w.string("val").value(e.valType,e.valBits,e.valString);
+	}
+
+	/*
+	 * Publish the journaled messages in one burst, only waiting for each batch's last message
+	 * to be delivered. The journal is cleared when all of them went out; otherwise, the whole
+	 * journal is replayed again on the publisher's next round, within a second once we're
+	 * connected, which is harmless for retained status messages
+	 */
+	private void replayJournal()
+	{
+		final long start=System.currentTimeMillis();
+		final IMqttDeliveryToken lastToken[]=new IMqttDeliveryToken[1];
 		try
 		{
-			String fullTopic=topicPrefix+"status/"+name;
-			mqttc.publish(fullTopic, msg);
-			L.finer("Published "+txtmsg+" to "+fullTopic);
+			int count=journal.replay(new OutboundJournal.Replayer() {
+				private int inBatch;
+
+				@Override
+				public void replay(String topic,byte payload[]) throws MqttException
+				{
+					lastToken[0]=mqttc.publish(topic,payload,0,true);
+					if(++inBatch==publishBatchSize)
+					{
+						lastToken[0].waitForCompletion(10*1000);
+						inBatch=0;
+					}
+				}
+			});
+			if(lastToken[0]!=null)
+				lastToken[0].waitForCompletion(10*1000);
+			journal.clear();
+			replayedMetric.add(count);
+			publishedMetric.add(count);
+			L.info("Replayed "+count+" journaled messages in "+(System.currentTimeMillis()-start)+"ms");
 		}
-		catch(MqttException e)
+		catch(MqttException mqe)
 		{
-			L.log(Level.WARNING,"Error when publishing message "+txtmsg,e);
+			L.log(Level.WARNING,"Error when replaying journaled messages, will retry within a second once connected",mqe);
 		}
 	}
 
+	private IMqttDeliveryToken doPublish(PublishQueue.Entry e)
+	{
+		PayloadFormat format=e.gai!=null ? e.gai.payloadFormat : PayloadFormat.forName(e.name);
+		// Only kept for logging
+		Object w;
+		byte payload[];
+		if(format.encoding==PayloadFormat.Encoding.JSON)
+		{
+			renderPayload(e,payloadWriter,format.compact);
+			payload=payloadWriter.toByteArray();
+			w=payloadWriter;
+		}
+		else
+		{
+			BinaryPayloadWriter bw=format.encoding==PayloadFormat.Encoding.CBOR ? cborWriter : msgpackWriter;
+			renderPayload(e,bw,format.compact);
+			payload=bw.toByteArray();
+			w=bw;
+		}
+		String fullTopic=e.gai!=null ? e.gai.statusTopic : topicPrefix+"status/"+e.name;
+		if(journal!=null && (!journal.isEmpty() || !mqttc.isConnected()))
+		{
+			journalMessage(fullTopic,payload,w);
+			return null;
+		}
+		try
+		{
+			knxToMqttLatency.recordSince(e.queueTime);
+			IMqttDeliveryToken token;
+			if(metricsInterval>0)
+				token=mqttc.publish(fullTopic,payload,0,true,Long.valueOf(System.nanoTime()),publishLatencyRecorder);
+			else
+				token=mqttc.publish(fullTopic,payload,0,true);
+			publishedMetric.inc();
+			if(L.isLoggable(Level.FINER))
+				L.finer("Published "+w+" to "+fullTopic);
+			return token;
+		}
+		catch(MqttException mqe)
+		{
+			if(journal!=null)
+			{
+				L.log(Level.WARNING,"Error when publishing message "+w+", journaling it",mqe);
+				journalMessage(fullTopic,payload,w);
+			}
+			else
+				L.log(Level.WARNING,"Error when publishing message "+w,mqe);
+			return null;
+		}
+	}
+
+	private void journalMessage(String topic,byte payload[],Object w)
+	{
+		if(journal.isEmpty())
+			L.info("Broker not available, journaling status messages in "+System.getProperty("knx2mqtt.mqtt.journal"));
+		if(!journal.append(topic,payload))
+			L.warning("Journal is full, dropped message "+w+" to "+topic);
+	}
+
 	private void sendConnectionState()
 	{
 		try
@@ -208,9 +592,43 @@ public class MQTTHandler
 		instance.sendConnectionState();
 	}
 
-	public static void publish(String name, Object val, String src,String dpt,String textual,long updateTime,long lastChange)
+	/**
+	 * Publish the progress of a resync to prefix/resync
+	 */
+	static void publishResyncState(byte payload[])
+	{
+		if(instance==null || !instance.mqttc.isConnected())
+			return;
+		try
+		{
+			instance.mqttc.publish(instance.topicPrefix+"resync",payload,0,true);
+		}
+		catch(MqttException mqe)
+		{
+			instance.L.log(Level.FINE,"Error when publishing resync state",mqe);
+		}
+	}
+
+	/**
+	 * Queue a status message with the current value of a group address in the ValueStore.
+	 * This does not wait for the broker.
+	 */
+	public static void publish(GroupAddressInfo gai,String textual,long updateTime)
+	{
+		int slot=gai.rawAddress;
+		if(!instance.publishQueue.put(gai,gai.name,ValueStore.getType(slot),ValueStore.getBits(slot),ValueStore.getString(slot),ValueStore.getSrc(slot),gai.dpt,textual,updateTime,ValueStore.getLastChange(slot)))
+			instance.L.warning("Interrupted while queueing message for "+gai.name+", dropped it");
+	}
+
+	/**
+	 * Queue a status message for a group address which is not in the table
+	 *
+	 * @param valType the type of the value as in the ValueStore
+	 */
+	public static void publish(String name,int valType,long valBits,String valString,int src,String dpt,long now)
 	{
-		instance.doPublish(name,val,src,dpt,textual,updateTime,lastChange);
+		if(!instance.publishQueue.put(null,name,valType,valBits,valString,src,dpt,null,now,now))
+			instance.L.warning("Interrupted while queueing message for "+name+", dropped it");
 	}
 
 }
@@ -56,9 +56,11 @@ public class Main
 		}
 		Logger.getLogger(Main.class.getName()).info("knx2mqtt V"+getVersion()+" (C) 2015 Oliver Wagner <owagner@tellerulam.com>");
 		SyslogHandler.readConfig();
-		GroupAddressManager.loadETS4Project();
-		GroupAddressManager.loadGroupAddressTable();
+		StateStore.open();
+		GroupAddressManager.load();
+		GroupAddressManager.startReloadWatcher();
 		MQTTHandler.init();
+		PublishPolicy.startHeartbeat();
 		KNXConnector.launch();
 	}
 }
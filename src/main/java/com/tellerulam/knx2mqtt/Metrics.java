@@ -0,0 +1,210 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Registry of runtime metrics. Counters and histograms are updated without locking from
+ * whatever thread observes the event; they are rendered to JSON periodically by the
+ * MQTT handler and published to prefix/metrics/name.
+ *
+ * Counters report their total and the rate per second since the last report, gauges
+ * their current value. Histograms report the distribution of the values recorded since
+ * the last report, with about 6% precision.
+ */
+public class Metrics
+{
+	interface Metric
+	{
+		/**
+		 * Render the JSON message for this metric. Only called by the reporting thread.
+		 */
+		void render(JsonPayloadWriter w,long now);
+	}
+
+	interface Gauge
+	{
+		long get();
+	}
+
+	static class Counter implements Metric
+	{
+		private final AtomicLong value=new AtomicLong();
+		private long lastReported;
+		private long lastReportTime=System.currentTimeMillis();
+
+		void inc()
+		{
+			value.incrementAndGet();
+		}
+
+		void add(long n)
+		{
+			value.addAndGet(n);
+		}
+
+		long get()
+		{
+			return value.get();
+		}
+
+		@Override
+		public void render(JsonPayloadWriter w,long now)
+		{
+			long v=value.get();
+			double rate=(v-lastReported)*1000.0/Math.max(1,now-lastReportTime);
+			lastReported=v;
+			lastReportTime=now;
+			w.raw("{\"val\":").number(v).raw(",\"rate\":").number(Math.round(rate*100)/100.0).raw(",\"ts\":").number(now).raw("}");
+		}
+	}
+
+	private static class GaugeMetric implements Metric
+	{
+		private final Gauge gauge;
+
+		GaugeMetric(Gauge gauge)
+		{
+			this.gauge=gauge;
+		}
+
+		@Override
+		public void render(JsonPayloadWriter w,long now)
+		{
+			w.raw("{\"val\":").number(gauge.get()).raw(",\"ts\":").number(now).raw("}");
+		}
+	}
+
+	/**
+	 * Log-linear histogram in the style of HdrHistogram: each power of two is split
+	 * into 16 linear sub-buckets, so any non-negative long can be recorded with a
+	 * relative error of at most 1/16, in a fixed number of buckets.
+	 */
+	static class Histogram implements Metric
+	{
+		private static final int SUB_BUCKET_BITS=4;
+		private static final int SUB_BUCKETS=1<<SUB_BUCKET_BITS;
+		private static final double PERCENTILES[]={ 50, 90, 99, 99.9 };
+		private static final String PERCENTILE_NAMES[]={ ",\"p50\":", ",\"p90\":", ",\"p99\":", ",\"p999\":" };
+
+		private final String unit;
+		private final AtomicLongArray buckets=new AtomicLongArray((64-SUB_BUCKET_BITS+1)*SUB_BUCKETS);
+		private final AtomicLong sum=new AtomicLong();
+		private final AtomicLong max=new AtomicLong();
+		/* Only used by the reporting thread */
+		private final long snapshot[]=new long[buckets.length()];
+
+		Histogram(String unit)
+		{
+			this.unit=unit;
+		}
+
+		static int bucketIndex(long v)
+		{
+			if(v<SUB_BUCKETS)
+				return (int)v;
+			int exp=63-Long.numberOfLeadingZeros(v);
+			return (exp-SUB_BUCKET_BITS+1)*SUB_BUCKETS+(int)((v>>>(exp-SUB_BUCKET_BITS))&(SUB_BUCKETS-1));
+		}
+
+		static long bucketLowerBound(int ix)
+		{
+			if(ix<SUB_BUCKETS)
+				return ix;
+			int exp=ix/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+			return (long)(SUB_BUCKETS+ix%SUB_BUCKETS)<<(exp-SUB_BUCKET_BITS);
+		}
+
+		void record(long v)
+		{
+			if(v<0)
+				v=0;
+			buckets.incrementAndGet(bucketIndex(v));
+			sum.addAndGet(v);
+			long m;
+			while(v>(m=max.get()))
+				if(max.compareAndSet(m,v))
+					break;
+		}
+
+		/**
+		 * Record the time elapsed since startNanos, in microseconds
+		 */
+		void recordSince(long startNanos)
+		{
+			record((System.nanoTime()-startNanos)/1000);
+		}
+
+		@Override
+		public void render(JsonPayloadWriter w,long now)
+		{
+			long count=0;
+			int lowest=-1;
+			for(int ix=0;ix<snapshot.length;ix++)
+			{
+				long n=buckets.getAndSet(ix,0);
+				snapshot[ix]=n;
+				if(n!=0 && lowest<0)
+					lowest=ix;
+				count+=n;
+			}
+			long total=sum.getAndSet(0);
+			long highest=max.getAndSet(0);
+			w.raw("{\"count\":").number(count);
+			if(count>0)
+			{
+				w.raw(",\"min\":").number(bucketLowerBound(lowest));
+				w.raw(",\"mean\":").number(total/count);
+				int ix=0;
+				long seen=0;
+				for(int p=0;p<PERCENTILES.length;p++)
+				{
+					long rank=(long)Math.ceil(count*PERCENTILES[p]/100);
+					while(seen+snapshot[ix]<rank)
+						seen+=snapshot[ix++];
+					// Highest value which falls into the bucket, but no more than what we've seen
+					w.raw(PERCENTILE_NAMES[p]).number(Math.min(highest,bucketLowerBound(ix+1)-1));
+				}
+				w.raw(",\"max\":").number(highest);
+			}
+			w.raw(",\"unit\":").string(unit).raw(",\"ts\":").number(now).raw("}");
+		}
+	}
+
+	private static final Map<String,Metric> registry=new LinkedHashMap<>();
+
+	private static synchronized Metric register(String name,Metric m)
+	{
+		Metric existing=registry.get(name);
+		if(existing!=null)
+			return existing;
+		registry.put(name,m);
+		return m;
+	}
+
+	static Counter counter(String name)
+	{
+		return (Counter)register(name,new Counter());
+	}
+
+	/**
+	 * @param unit unit of the recorded values, e.g. "us"
+	 */
+	static Histogram histogram(String name,String unit)
+	{
+		return (Histogram)register(name,new Histogram(unit));
+	}
+
+	static void gauge(String name,Gauge g)
+	{
+		register(name,new GaugeMetric(g));
+	}
+
+	/**
+	 * @return all registered metrics, by name, in registration order
+	 */
+	static synchronized List<Map.Entry<String,Metric>> getMetrics()
+	{
+		return new ArrayList<>(registry.entrySet());
+	}
+}
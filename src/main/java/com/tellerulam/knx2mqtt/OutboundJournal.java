@@ -0,0 +1,232 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+/**
+ * Bounded journal of status messages which could not be published because the broker
+ * was unreachable. It lives in a memory-mapped file, so messages also survive a restart
+ * during a broker outage.
+ *
+ * Messages are appended as records of topic and payload. Only the newest record for each
+ * topic is replayed, as the status topics are retained and only the last value counts.
+ * When the file is full, it's compacted down to the newest records; a message which
+ * doesn't fit even then is dropped and counted.
+ *
+ * File layout: magic, format version and the end offset of the last complete record,
+ * followed by the records: int record length, u16 topic length, UTF-8 topic, payload.
+ *
+ * Not thread-safe, it's only used by the MQTT publisher thread; only size() and getDropped()
+ * may be called from other threads.
+ */
+public class OutboundJournal
+{
+	private static final Logger L=Logger.getLogger(OutboundJournal.class.getName());
+
+	private static final int JOURNAL_MAGIC=0x4B324D4A;
+	private static final int JOURNAL_VERSION=1;
+	private static final int END_OFFSET_POSITION=8;
+	private static final int HEADER_SIZE=12;
+
+	interface Replayer
+	{
+		void replay(String topic,byte payload[]) throws MqttException;
+	}
+
+	private final MappedByteBuffer buf;
+	private int end=HEADER_SIZE;
+	/* Offset of the newest record of each topic */
+	private final Map<String,Integer> newest=new HashMap<>();
+	private volatile int pending;
+	private volatile long dropped;
+
+	/**
+	 * Open the journal, picking up messages left over from a previous run
+	 *
+	 * @param size maximum size of the journal file in bytes
+	 */
+	public OutboundJournal(File file,int size) throws IOException
+	{
+		try(RandomAccessFile raf=new RandomAccessFile(file,"rw"))
+		{
+			boolean existing=raf.length()>=HEADER_SIZE;
+			buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,Math.max(size,(int)Math.min(raf.length(),Integer.MAX_VALUE)));
+			if(existing && !recover())
+				L.warning("Journal file "+file+" is invalid or has an incompatible format, discarding its content");
+		}
+		pending=newest.size();
+		if(newest.isEmpty())
+			clear();
+		else
+			L.info("Journal file "+file+" holds "+newest.size()+" unpublished messages from a previous run");
+	}
+
+	private boolean recover()
+	{
+		if(buf.getInt(0)!=JOURNAL_MAGIC || buf.getInt(4)!=JOURNAL_VERSION)
+			return false;
+		int recordedEnd=buf.getInt(END_OFFSET_POSITION);
+		if(recordedEnd<HEADER_SIZE || recordedEnd>buf.capacity())
+			return false;
+		int offset=HEADER_SIZE;
+		while(offset<recordedEnd)
+		{
+			int length=buf.getInt(offset);
+			if(length<6 || offset+length>recordedEnd)
+			{
+				newest.clear();
+				return false;
+			}
+			newest.put(readTopic(offset),Integer.valueOf(offset));
+			offset+=length;
+		}
+		end=recordedEnd;
+		return true;
+	}
+
+	private String readTopic(int offset)
+	{
+		int topicLength=buf.getShort(offset+4)&0xffff;
+		byte topic[]=new byte[topicLength];
+		ByteBuffer b=buf.duplicate();
+		b.position(offset+6);
+		b.get(topic);
+		return new String(topic,StandardCharsets.UTF_8);
+	}
+
+	private byte[] readPayload(int offset)
+	{
+		int length=buf.getInt(offset);
+		int payloadOffset=6+(buf.getShort(offset+4)&0xffff);
+		byte payload[]=new byte[length-payloadOffset];
+		ByteBuffer b=buf.duplicate();
+		b.position(offset+payloadOffset);
+		b.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Append a message
+	 *
+	 * @return false if the journal is full and the message was dropped
+	 */
+	public boolean append(String topic,byte payload[])
+	{
+		byte topicBytes[]=topic.getBytes(StandardCharsets.UTF_8);
+		int length=6+topicBytes.length+payload.length;
+		if(end+length>buf.capacity())
+		{
+			compact();
+			if(end+length>buf.capacity())
+			{
+				dropped++;
+				return false;
+			}
+		}
+		ByteBuffer b=buf.duplicate();
+		b.position(end);
+		b.putInt(length);
+		b.putShort((short)topicBytes.length);
+		b.put(topicBytes);
+		b.put(payload);
+		newest.put(topic,Integer.valueOf(end));
+		pending=newest.size();
+		end+=length;
+		// Only now the record becomes part of the journal
+		buf.putInt(END_OFFSET_POSITION,end);
+		return true;
+	}
+
+	/*
+	 * Move the newest record of each topic to the front, in their original order
+	 */
+	private void compact()
+	{
+		int records[]=new int[newest.size()];
+		int n=0;
+		for(Integer offset:newest.values())
+			records[n++]=offset.intValue();
+		Arrays.sort(records);
+		int to=HEADER_SIZE;
+		for(int ix=0;ix<n;ix++)
+		{
+			int from=records[ix];
+			int length=buf.getInt(from);
+			if(from!=to)
+			{
+				// Records only ever move towards the front, so this doesn't overwrite anything we still need
+				byte record[]=new byte[length];
+				ByteBuffer b=buf.duplicate();
+				b.position(from);
+				b.get(record);
+				b.position(to);
+				b.put(record);
+				newest.put(readTopic(to),Integer.valueOf(to));
+			}
+			to+=length;
+		}
+		end=to;
+		buf.putInt(END_OFFSET_POSITION,end);
+	}
+
+	/**
+	 * Replay the newest message of each topic, in the order they were appended. The journal
+	 * is left untouched; call clear() once the replayed messages have been delivered.
+	 *
+	 * @return the number of replayed messages
+	 */
+	public int replay(Replayer r) throws MqttException
+	{
+		int count=0;
+		int offset=HEADER_SIZE;
+		while(offset<end)
+		{
+			int length=buf.getInt(offset);
+			String topic=readTopic(offset);
+			if(newest.get(topic).intValue()==offset)
+			{
+				r.replay(topic,readPayload(offset));
+				count++;
+			}
+			offset+=length;
+		}
+		return count;
+	}
+
+	public void clear()
+	{
+		newest.clear();
+		pending=0;
+		end=HEADER_SIZE;
+		buf.putInt(0,JOURNAL_MAGIC);
+		buf.putInt(4,JOURNAL_VERSION);
+		buf.putInt(END_OFFSET_POSITION,end);
+	}
+
+	public boolean isEmpty()
+	{
+		return newest.isEmpty();
+	}
+
+	/**
+	 * @return the number of messages which will be replayed
+	 */
+	public int size()
+	{
+		return pending;
+	}
+
+	/**
+	 * @return the number of messages dropped because the journal was full
+	 */
+	public long getDropped()
+	{
+		return dropped;
+	}
+}
@@ -0,0 +1,114 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Encoding of the status messages, configured per group address name prefix as
+ *
+ *   json|cbor|msgpack[,compact]
+ *
+ * The binary encodings carry the same map as the JSON object. With compact, the
+ * message is reduced to val, ts and lc. There are only a handful of distinct formats,
+ * so instances are shared; they get compiled into the GroupAddressInfo when the
+ * table is loaded.
+ */
+public class PayloadFormat
+{
+	private static final Logger L=Logger.getLogger(PayloadFormat.class.getName());
+
+	public enum Encoding
+	{
+		JSON,
+		CBOR,
+		MSGPACK
+	}
+
+	final Encoding encoding;
+	final boolean compact;
+
+	private PayloadFormat(Encoding encoding,boolean compact)
+	{
+		this.encoding=encoding;
+		this.compact=compact;
+	}
+
+	/* Indexed by encoding ordinal*2 + compact */
+	private static final PayloadFormat FORMATS[]=new PayloadFormat[Encoding.values().length*2];
+	static
+	{
+		for(Encoding e:Encoding.values())
+		{
+			FORMATS[e.ordinal()*2]=new PayloadFormat(e,false);
+			FORMATS[e.ordinal()*2+1]=new PayloadFormat(e,true);
+		}
+	}
+
+	static final PayloadFormat DEFAULT=get(Encoding.JSON,false);
+
+	static PayloadFormat get(Encoding encoding,boolean compact)
+	{
+		return FORMATS[encoding.ordinal()*2+(compact?1:0)];
+	}
+
+	private static PrefixConfig config;
+	/* Invalid format.* values we already warned about */
+	private static final Set<String> invalidFormats=new HashSet<>();
+
+	/**
+	 * @return the format configured for the given group address name. An invalid
+	 * format is ignored with a warning
+	 */
+	static synchronized PayloadFormat forName(String name)
+	{
+		if(config==null)
+			config=PrefixConfig.fromSystemProperties("format");
+		String spec=config.lookup(name);
+		if(spec==null || spec.length()==0)
+			return DEFAULT;
+		PayloadFormat f;
+		try
+		{
+			f=parse(spec);
+		}
+		catch(IllegalArgumentException e)
+		{
+			if(invalidFormats.add(spec))
+				L.warning(e.getMessage()+", using json instead");
+			return DEFAULT;
+		}
+		if(f!=DEFAULT)
+			L.fine("Using payload format "+f+" for "+name);
+		return f;
+	}
+
+	static PayloadFormat parse(String spec)
+	{
+		Encoding encoding=Encoding.JSON;
+		boolean compact=false;
+		for(String opt:spec.split(","))
+		{
+			opt=opt.trim();
+			if("compact".equals(opt))
+				compact=true;
+			else
+			{
+				try
+				{
+					encoding=Encoding.valueOf(opt.toUpperCase(Locale.ROOT));
+				}
+				catch(IllegalArgumentException iae)
+				{
+					throw new IllegalArgumentException("Unknown payload format '"+opt+"' in '"+spec+"'");
+				}
+			}
+		}
+		return get(encoding,compact);
+	}
+
+	@Override
+	public String toString()
+	{
+		return encoding.name().toLowerCase(Locale.ROOT)+(compact?",compact":"");
+	}
+}
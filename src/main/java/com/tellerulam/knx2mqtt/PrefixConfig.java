@@ -0,0 +1,61 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+
+/**
+ * Settings which apply to group addresses by their name or a prefix of it, i.e.
+ * a GroupRange. They are specified as system properties, with the name prefix
+ * appended to the property name:
+ *
+ *   knx2mqtt.policy.Heizung/Temperaturen/=change,deadband=0.2
+ *
+ * The longest matching prefix wins. An empty prefix acts as the default.
+ */
+public class PrefixConfig
+{
+	private final String prefixes[];
+	private final String values[];
+
+	private PrefixConfig(List<String> prefixes,Map<String,String> values)
+	{
+		this.prefixes=prefixes.toArray(new String[prefixes.size()]);
+		this.values=new String[this.prefixes.length];
+		for(int ix=0;ix<this.prefixes.length;ix++)
+			this.values[ix]=values.get(this.prefixes[ix]);
+	}
+
+	/**
+	 * @param property property name without the "knx2mqtt." prefix and the trailing dot, e.g. "policy"
+	 */
+	public static PrefixConfig fromSystemProperties(String property)
+	{
+		String propPrefix="knx2mqtt."+property+".";
+		Map<String,String> values=new HashMap<>();
+		for(String key:System.getProperties().stringPropertyNames())
+		{
+			if(key.startsWith(propPrefix))
+				values.put(key.substring(propPrefix.length()),System.getProperty(key).trim());
+		}
+		List<String> prefixes=new ArrayList<>(values.keySet());
+		// Longest first, so the first match is the most specific one
+		Collections.sort(prefixes,new Comparator<String>(){
+			@Override
+			public int compare(String o1,String o2)
+			{
+				return o2.length()-o1.length();
+			}
+		});
+		return new PrefixConfig(prefixes,values);
+	}
+
+	/**
+	 * @return the value configured for the longest prefix of name, or null
+	 */
+	public String lookup(String name)
+	{
+		for(int ix=0;ix<prefixes.length;ix++)
+			if(name.startsWith(prefixes[ix]))
+				return values[ix];
+		return null;
+	}
+}
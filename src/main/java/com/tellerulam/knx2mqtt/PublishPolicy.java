@@ -0,0 +1,258 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+import java.util.logging.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+/**
+ * Decides whether a received value is published to MQTT. Policies are configured
+ * per group address name prefix as a comma-separated list of rules:
+ *
+ *   change         only publish if the value differs from the last published one
+ *   deadband=0.2   only publish if the value differs by at least 0.2 from the last published one
+ *   deadband=5%    same, relative to the last published value
+ *   mininterval=10s  publish at most once per interval
+ *   heartbeat=15m  publish even an unchanged value if nothing was published for this long
+ *
+ * Intervals are in milliseconds, or take one of the suffixes s, m or h. The first value
+ * received for a group address is always published. Instances are immutable and get
+ * compiled into the GroupAddressInfo when the table is loaded; the state they work on
+ * is kept in the ValueStore.
+ *
+ * A value held back by mininterval is reconsidered when the interval has passed, so the
+ * last value of a burst is published even if no further telegram arrives. Heartbeats are
+ * sent from a timer, so they also cover group addresses which went silent. Both run on
+ * the timer thread, under the ingest lock, like the KNX listener. The heartbeat timer only
+ * looks at the group addresses with a heartbeat rule, and takes the lock for those which
+ * are due.
+ */
+public class PublishPolicy
+{
+	private static final Logger L=Logger.getLogger(PublishPolicy.class.getName());
+
+	private final boolean onChange;
+	private final double deadband;
+	private final boolean deadbandRelative;
+	private final long minInterval;
+	private final long heartbeat;
+
+	private PublishPolicy(boolean onChange,double deadband,boolean deadbandRelative,long minInterval,long heartbeat)
+	{
+		this.onChange=onChange;
+		this.deadband=deadband;
+		this.deadbandRelative=deadbandRelative;
+		this.minInterval=minInterval;
+		this.heartbeat=heartbeat;
+	}
+
+	private static PrefixConfig config;
+	/* Invalid policy.* values we already warned about */
+	private static final Set<String> invalidPolicies=new HashSet<>();
+	/* Slots for which a deferred publish is scheduled, guarded by the ingest lock */
+	private static final boolean deferred[]=new boolean[65536];
+	private static final long HEARTBEAT_CHECK_INTERVAL=1000;
+
+	/**
+	 * @return the policy configured for the given group address name, or null if
+	 * every value is to be published. An invalid policy is ignored with a warning
+	 */
+	static synchronized PublishPolicy forName(String name)
+	{
+		if(config==null)
+			config=PrefixConfig.fromSystemProperties("policy");
+		String spec=config.lookup(name);
+		if(spec==null || spec.length()==0)
+			return null;
+		PublishPolicy p;
+		try
+		{
+			p=parse(spec);
+		}
+		catch(IllegalArgumentException e)
+		{
+			if(invalidPolicies.add(spec))
+				L.warning(e.getMessage()+", publishing every value instead");
+			return null;
+		}
+		L.fine("Using publish policy "+p+" for "+name);
+		return p;
+	}
+
+	static PublishPolicy parse(String spec)
+	{
+		boolean onChange=false;
+		double deadband=0;
+		boolean deadbandRelative=false;
+		long minInterval=0;
+		long heartbeat=0;
+		for(String rule:spec.split(","))
+		{
+			rule=rule.trim();
+			String kv[]=rule.split("=",2);
+			String key=kv[0].trim();
+			String val=kv.length>1?kv[1].trim():null;
+			try
+			{
+				if("change".equals(key) && val==null)
+					onChange=true;
+				else if("deadband".equals(key) && val!=null)
+				{
+					if(val.endsWith("%"))
+					{
+						deadbandRelative=true;
+						deadband=Double.parseDouble(val.substring(0,val.length()-1))/100;
+					}
+					else
+						deadband=Double.parseDouble(val);
+				}
+				else if("mininterval".equals(key) && val!=null)
+					minInterval=parseInterval(val);
+				else if("heartbeat".equals(key) && val!=null)
+					heartbeat=parseInterval(val);
+				else
+					throw new IllegalArgumentException("Unknown publish policy rule '"+rule+"' in '"+spec+"'");
+			}
+			catch(NumberFormatException nfe)
+			{
+				throw new IllegalArgumentException("Invalid number in publish policy rule '"+rule+"' in '"+spec+"'");
+			}
+		}
+		return new PublishPolicy(onChange,deadband,deadbandRelative,minInterval,heartbeat);
+	}
+
+	private static long parseInterval(String val)
+	{
+		if(val.length()==0)
+			throw new NumberFormatException("Empty interval");
+		long factor=1;
+		switch(val.charAt(val.length()-1))
+		{
+			case 's':
+				factor=1000;
+				break;
+			case 'm':
+				factor=60*1000;
+				break;
+			case 'h':
+				factor=60*60*1000;
+				break;
+		}
+		if(factor!=1)
+			val=val.substring(0,val.length()-1);
+		return Long.parseLong(val)*factor;
+	}
+
+	boolean hasHeartbeat()
+	{
+		return heartbeat>0;
+	}
+
+	/**
+	 * Decide about the current value of a ValueStore slot, compared to the value
+	 * last published from it
+	 */
+	boolean shouldPublish(int slot,long now)
+	{
+		if(!ValueStore.hasPublished(slot))
+			return true;
+		long sinceLast=now-ValueStore.getPublishTime(slot);
+		if(sinceLast<minInterval)
+			return false;
+		if(heartbeat>0 && sinceLast>=heartbeat)
+			return true;
+		int type=ValueStore.getType(slot);
+		int lastType=ValueStore.getPublishedType(slot);
+		if(deadband>0 && type!=ValueStore.TYPE_STRING && lastType!=ValueStore.TYPE_STRING)
+		{
+			double last=ValueStore.toDouble(lastType,ValueStore.getPublishedBits(slot));
+			double delta=Math.abs(ValueStore.toDouble(type,ValueStore.getBits(slot))-last);
+			double threshold=deadbandRelative ? deadband*Math.abs(last) : deadband;
+			return delta>=threshold && delta>0;
+		}
+		if(onChange || deadband>0)
+			return !ValueStore.isUnchangedSincePublished(slot);
+		return true;
+	}
+
+	/**
+	 * Called with the ingest lock held when shouldPublish() held back the current value.
+	 * If mininterval was the reason, it is reconsidered once the interval has passed.
+	 */
+	void deferIfRateLimited(final GroupAddressInfo gai,long now)
+	{
+		final int slot=gai.rawAddress;
+		if(minInterval<=0 || deferred[slot] || !ValueStore.hasPublished(slot))
+			return;
+		long due=ValueStore.getPublishTime(slot)+minInterval;
+		if(due<=now)
+			return;
+		deferred[slot]=true;
+		Main.t.schedule(new TimerTask(){
+			@Override
+			public void run()
+			{
+				synchronized(KNXConnector.ingestLock)
+				{
+					deferred[slot]=false;
+					// The group address may have been removed or changed by a reload meanwhile
+					if(GroupAddressManager.getGAInfoForRawAddress(slot)!=gai)
+						return;
+					long now=System.currentTimeMillis();
+					if(gai.shouldPublish(now,false))
+						gai.publishStoredValue();
+				}
+			}
+		},due-now);
+	}
+
+	/**
+	 * Start republishing the values of group addresses with a heartbeat rule which
+	 * had nothing published for longer than their heartbeat
+	 */
+	static void startHeartbeat()
+	{
+		Main.t.schedule(new TimerTask(){
+			@Override
+			public void run()
+			{
+				long now=System.currentTimeMillis();
+				for(GroupAddressInfo gai:GroupAddressManager.getHeartbeatGAInfos())
+				{
+					// Checked without the lock first, as most group addresses aren't due
+					if(!isHeartbeatDue(gai,now))
+						continue;
+					synchronized(KNXConnector.ingestLock)
+					{
+						// The group address may have been removed or changed by a reload meanwhile
+						if(GroupAddressManager.getGAInfoForRawAddress(gai.rawAddress)==gai && isHeartbeatDue(gai,now) && gai.shouldPublish(now,true))
+							gai.publishStoredValue();
+					}
+				}
+			}
+		},HEARTBEAT_CHECK_INTERVAL,HEARTBEAT_CHECK_INTERVAL);
+	}
+
+	private static boolean isHeartbeatDue(GroupAddressInfo gai,long now)
+	{
+		int slot=gai.rawAddress;
+		return ValueStore.getType(slot)!=ValueStore.TYPE_NONE && now-ValueStore.getPublishTime(slot)>=gai.publishPolicy.heartbeat;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb=new StringBuilder();
+		if(onChange)
+			sb.append("change,");
+		if(deadband>0)
+			sb.append("deadband=").append(deadbandRelative?deadband*100+"%":String.valueOf(deadband)).append(',');
+		if(minInterval>0)
+			sb.append("mininterval=").append(minInterval).append(',');
+		if(heartbeat>0)
+			sb.append("heartbeat=").append(heartbeat).append(',');
+		if(sb.length()>0)
+			sb.setLength(sb.length()-1);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,247 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+/**
+ * Bounded handoff between the KNX listener and the MQTT publisher thread.
+ *
+ * The queue is a ring buffer of preallocated entries. Producers copy their
+ * values into a free slot, and the consumer copies whole batches out into
+ * its own set of entries, so no queue nodes are allocated per telegram.
+ */
+public class PublishQueue
+{
+	public enum OverflowPolicy
+	{
+		/** Producer waits until the publisher has made room */
+		BLOCK,
+		/** The oldest queued entry is discarded */
+		DROP_OLDEST,
+		/** A queued entry for the same name is replaced, otherwise the oldest one is discarded */
+		COALESCE
+	}
+
+	static class Entry
+	{
+		/** null for group addresses which are not in the table */
+		GroupAddressInfo gai;
+		String name;
+		/** The value, in the representation of the ValueStore */
+		int valType;
+		long valBits;
+		String valString;
+		int src;
+		String dpt;
+		String textual;
+		long updateTime;
+		long lastChange;
+		/** System.nanoTime() when the entry was queued */
+		long queueTime;
+
+		void set(GroupAddressInfo gai,String name,int valType,long valBits,String valString,int src,String dpt,String textual,long updateTime,long lastChange)
+		{
+			this.gai=gai;
+			this.name=name;
+			this.valType=valType;
+			this.valBits=valBits;
+			this.valString=valString;
+			this.src=src;
+			this.dpt=dpt;
+			this.textual=textual;
+			this.updateTime=updateTime;
+			this.lastChange=lastChange;
+		}
+
+		void moveTo(Entry e)
+		{
+			e.set(gai,name,valType,valBits,valString,src,dpt,textual,updateTime,lastChange);
+			e.queueTime=queueTime;
+			// Don't keep references to values which have already been handed out
+			set(null,null,ValueStore.TYPE_NONE,0,null,0,null,null,0,0);
+		}
+	}
+
+	static Entry[] createBatch(int size)
+	{
+		Entry batch[]=new Entry[size];
+		for(int ix=0;ix<size;ix++)
+			batch[ix]=new Entry();
+		return batch;
+	}
+
+	private final Entry ring[];
+	private final OverflowPolicy policy;
+	private int head;
+	private int count;
+	private long dropped;
+
+	private final ReentrantLock lock=new ReentrantLock();
+	private final Condition notEmpty=lock.newCondition();
+	private final Condition notFull=lock.newCondition();
+
+	public PublishQueue(int capacity,OverflowPolicy policy)
+	{
+		if(capacity<1)
+			throw new IllegalArgumentException("Queue capacity must be at least 1");
+		ring=createBatch(capacity);
+		this.policy=policy;
+	}
+
+	/**
+	 * Queue a message for publishing. Depending on the overflow policy, this will
+	 * either wait for space or discard a queued entry when the queue is full.
+	 *
+	 * @return false if the message was dropped because the calling thread was interrupted
+	 */
+	public boolean put(GroupAddressInfo gai,String name,int valType,long valBits,String valString,int src,String dpt,String textual,long updateTime,long lastChange)
+	{
+		long queueTime=System.nanoTime();
+		lock.lock();
+		try
+		{
+			if(count==ring.length)
+			{
+				switch(policy)
+				{
+					case BLOCK:
+						while(count==ring.length)
+							notFull.await();
+						break;
+					case COALESCE:
+						Entry e=findQueued(gai,name);
+						if(e!=null)
+						{
+							e.set(gai,name,valType,valBits,valString,src,dpt,textual,updateTime,lastChange);
+							e.queueTime=queueTime;
+							dropped++;
+							return true;
+						}
+						dropOldest();
+						break;
+					case DROP_OLDEST:
+						dropOldest();
+						break;
+				}
+			}
+			Entry e=ring[(head+count)%ring.length];
+			e.set(gai,name,valType,valBits,valString,src,dpt,textual,updateTime,lastChange);
+			e.queueTime=queueTime;
+			count++;
+			notEmpty.signal();
+			return true;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Find a queued entry for the same group address, searching from the newest entry
+	 * backwards, the most likely place for a repeat. Only called with the lock held.
+	 */
+	private Entry findQueued(GroupAddressInfo gai,String name)
+	{
+		for(int ix=count-1;ix>=0;ix--)
+		{
+			Entry e=ring[(head+ix)%ring.length];
+			if(gai!=null ? gai==e.gai : name.equals(e.name))
+				return e;
+		}
+		return null;
+	}
+
+	/*
+	 * Only called with the lock held
+	 */
+	private void dropOldest()
+	{
+		head=(head+1)%ring.length;
+		count--;
+		dropped++;
+	}
+
+	/**
+	 * Wait until at least one entry is available, then move up to batch.length
+	 * entries into the given batch
+	 *
+	 * @return the number of entries moved
+	 */
+	public int drainTo(Entry batch[]) throws InterruptedException
+	{
+		return drainTo(batch,Long.MAX_VALUE);
+	}
+
+	/**
+	 * Like drainTo(Entry[]), but wait no longer than the given time
+	 *
+	 * @return the number of entries moved, 0 if none became available in time
+	 */
+	public int drainTo(Entry batch[],long timeoutMillis) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			long nanos=timeoutMillis==Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while(count==0)
+			{
+				if(nanos<=0)
+					return 0;
+				nanos=notEmpty.awaitNanos(nanos);
+			}
+			int n=Math.min(count,batch.length);
+			for(int ix=0;ix<n;ix++)
+			{
+				ring[head].moveTo(batch[ix]);
+				head=(head+1)%ring.length;
+			}
+			count-=n;
+			notFull.signalAll();
+			return n;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the current number of queued messages
+	 */
+	public int size()
+	{
+		lock.lock();
+		try
+		{
+			return count;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of messages discarded or coalesced due to overflow
+	 */
+	public long getDropped()
+	{
+		lock.lock();
+		try
+		{
+			return dropped;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+import java.util.logging.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+/**
+ * Reads the values of all known group addresses from the bus after a (re)connect, so our
+ * view of the bus state converges without having to wait for the devices to send.
+ *
+ * The reads are strictly background traffic: a read is only queued when its link has no
+ * other requests pending, at most knx.resyncrate reads per second are sent on top of the
+ * link's own pacing, and at most knx.resyncwindow reads await their response at any time.
+ * A read counts as answered when the response arrives, and as timed out after
+ * knx.readtimeout. Progress and completion are published to prefix/resync.
+ *
+ * Group addresses are included by name with resync.*prefix*=true|false, by default all are.
+ * Group addresses without a readable communication object, according to the project, are
+ * skipped, as their reads would only tie up the window until they time out. So are those
+ * whose link is closed; they are read when that link has reconnected.
+ */
+public class Resync extends Thread
+{
+	private static final Logger L=Logger.getLogger(Resync.class.getName());
+
+	private static final long POLL_INTERVAL=20;
+	private static final long PROGRESS_INTERVAL=1000;
+
+	private final PrefixConfig includeConfig=PrefixConfig.fromSystemProperties("resync");
+	private final TokenBucket bucket;
+	private final int window;
+
+	private boolean requested;
+	/* The link whose group addresses are to be read, null for all links */
+	private KNXConnector requestedLink;
+
+	Resync()
+	{
+		super("KNX Resync Thread");
+		setDaemon(true);
+		double rate=Double.parseDouble(System.getProperty("knx2mqtt.knx.resyncrate","10"));
+		bucket=new TokenBucket(rate,1);
+		window=Integer.getInteger("knx2mqtt.knx.resyncwindow",4).intValue();
+	}
+
+	/**
+	 * Request a resync of the group addresses routed to the given link, or of all
+	 * group addresses if link is null. Requests made while a resync is running are
+	 * merged and processed once it's finished.
+	 */
+	synchronized void request(KNXConnector link)
+	{
+		if(!requested)
+			requestedLink=link;
+		else if(requestedLink!=link)
+			requestedLink=null;
+		requested=true;
+		notifyAll();
+	}
+
+	private synchronized KNXConnector awaitRequest() throws InterruptedException
+	{
+		while(!requested)
+			wait();
+		requested=false;
+		return requestedLink;
+	}
+
+	private boolean isIncluded(GroupAddressInfo gai)
+	{
+		String spec=includeConfig.lookup(gai.name);
+		return spec==null || !"false".equalsIgnoreCase(spec);
+	}
+
+	@Override
+	public void run()
+	{
+		for(;;)
+		{
+			try
+			{
+				resync(awaitRequest());
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+			catch(Exception e)
+			{
+				L.log(Level.WARNING,"Error during resync",e);
+			}
+		}
+	}
+
+	private void resync(KNXConnector link) throws InterruptedException
+	{
+		List<GroupAddressInfo> gas=new ArrayList<>();
+		for(GroupAddressInfo gai:GroupAddressManager.getAllGAInfos())
+			if(gai.readable && isIncluded(gai) && (link==null || KNXConnector.route(gai)==link))
+				gas.add(gai);
+		if(gas.isEmpty())
+			return;
+
+		long start=System.currentTimeMillis();
+		L.info("Starting resync of "+gas.size()+" group addresses");
+		int next=0,sent=0,skipped=0,answered=0,timedOut=0;
+		List<GroupAddressInfo> outstanding=new ArrayList<>(window);
+		long nextProgress=start;
+		while(next<gas.size() || !outstanding.isEmpty())
+		{
+			long now=System.currentTimeMillis();
+			for(Iterator<GroupAddressInfo> it=outstanding.iterator();it.hasNext();)
+			{
+				long requestTime=it.next().readRequestTimestamp;
+				if(requestTime==0)
+					answered++;
+				else if(now-requestTime>=KNXConnector.readTimeout)
+					timedOut++;
+				else
+					continue;
+				it.remove();
+			}
+			if(now>=nextProgress)
+			{
+				publishProgress("running",gas.size(),sent,skipped,answered,timedOut,start,now);
+				nextProgress=now+PROGRESS_INTERVAL;
+			}
+			if(next<gas.size() && outstanding.size()<window)
+			{
+				GroupAddressInfo gai=gas.get(next);
+				KNXConnector c=KNXConnector.route(gai);
+				if(!c.isLinkOpen())
+				{
+					// Don't hold up the other links, this one resyncs when it has reconnected
+					next++;
+					skipped++;
+					continue;
+				}
+				if(c.getQueuedRequests()==0)
+				{
+					bucket.acquire();
+					// The response handling resets this, which is how we recognize it
+					gai.readRequestTimestamp=System.currentTimeMillis();
+					c.queueRead(gai);
+					outstanding.add(gai);
+					next++;
+					sent++;
+					continue;
+				}
+			}
+			Thread.sleep(POLL_INTERVAL);
+		}
+		long now=System.currentTimeMillis();
+		publishProgress("done",gas.size(),sent,skipped,answered,timedOut,start,now);
+		L.info("Resync finished in "+(now-start)+"ms, "+answered+" of "+sent+" group addresses answered"+(skipped>0 ? ", "+skipped+" skipped as their link was closed" : ""));
+	}
+
+	private final JsonPayloadWriter w=new JsonPayloadWriter();
+
+	private void publishProgress(String state,int total,int sent,int skipped,int answered,int timedOut,long start,long now)
+	{
+		w.reset();
+		w.raw("{\"state\":").string(state);
+		w.raw(",\"total\":").number(total);
+		w.raw(",\"sent\":").number(sent);
+		w.raw(",\"skipped\":").number(skipped);
+		w.raw(",\"answered\":").number(answered);
+		w.raw(",\"timeout\":").number(timedOut);
+		w.raw(",\"duration\":").number(now-start);
+		w.raw(",\"ts\":").number(now).raw("}");
+		MQTTHandler.publishResyncState(w.toByteArray());
+	}
+}
@@ -0,0 +1,84 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.util.zip.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+/**
+ * Renders the state of all group addresses into a single gzip-compressed JSON message:
+ *
+ *   {"type":"full","seq":7,"ts":...,"values":{"Licht/Flur":{"val":1,"ts":...,"lc":...},...}}
+ *
+ * A delta message has the same structure, with "type":"delta", only contains the group
+ * addresses updated since the previous message, and names that message's seq as "prev",
+ * so consumers can tell whether they missed one. Group addresses which never received a
+ * value are left out.
+ *
+ * Not thread-safe, it's only used by the timer thread.
+ */
+public class Snapshot
+{
+	private final JsonPayloadWriter w=new JsonPayloadWriter();
+	private final ByteArrayOutputStream bos=new ByteArrayOutputStream();
+	private long seq;
+	/* Updates at or after this time go into the next delta */
+	private long deltaSince;
+
+	/**
+	 * @return the compressed full snapshot
+	 */
+	byte[] full(long now) throws IOException
+	{
+		w.reset();
+		w.raw("{\"type\":\"full\",\"seq\":").number(++seq);
+		render(1,now);
+		return compress();
+	}
+
+	/**
+	 * @return the compressed delta since the last full snapshot or delta, or null if
+	 * nothing was updated
+	 */
+	byte[] delta(long now) throws IOException
+	{
+		w.reset();
+		w.raw("{\"type\":\"delta\",\"seq\":").number(seq+1).raw(",\"prev\":").number(seq);
+		if(render(deltaSince,now)==0)
+			return null;
+		seq++;
+		return compress();
+	}
+
+	private int render(long since,long now)
+	{
+		w.raw(",\"ts\":").number(now).raw(",\"values\":{");
+		int count=0;
+		for(GroupAddressInfo gai:GroupAddressManager.getAllGAInfos())
+		{
+			int slot=gai.rawAddress;
+			// Read this first, it makes the rest of the slot visible
+			long updateTime=ValueStore.getLastUpdate(slot);
+			if(updateTime==0 || updateTime<since || ValueStore.getType(slot)==ValueStore.TYPE_NONE)
+				continue;
+			if(count++!=0)
+				w.raw(",");
+			w.string(gai.name).raw(":{\"val\":").value(ValueStore.getType(slot),ValueStore.getBits(slot),ValueStore.getString(slot));
+			w.raw(",\"ts\":").number(updateTime).raw(",\"lc\":").number(ValueStore.getLastChange(slot)).raw("}");
+		}
+		w.raw("}}");
+		// now was taken before rendering, so updates which happened meanwhile go into the next delta again
+		deltaSince=now;
+		return count;
+	}
+
+	private byte[] compress() throws IOException
+	{
+		bos.reset();
+		try(GZIPOutputStream gz=new GZIPOutputStream(bos,8192))
+		{
+			w.writeTo(gz);
+		}
+		return bos.toByteArray();
+	}
+}
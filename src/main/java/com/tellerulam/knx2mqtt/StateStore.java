@@ -0,0 +1,154 @@
+package com.tellerulam.knx2mqtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.logging.*;
+
+import com.tellerulam.knx2mqtt.GroupAddressManager.GroupAddressInfo;
+
+/**
+ * Keeps the last received value of every group address in a memory-mapped file, so the
+ * bridge's state, and notably the time of the last change, survives a restart.
+ *
+ * The file has a fixed-size slot for each of the 65536 group addresses, indexed by the raw
+ * address, holding the ASDU, source address, the times of the last update and the last
+ * change, and a hash of the DPT the ASDU was stored with. Storing a value just writes into
+ * the mapping, without locking or I/O; the file is synced to disk periodically. As the slots
+ * are indexed by address, loading the file requires no parsing, and group addresses keep
+ * their state across project changes, unless their DPT has changed.
+ */
+public class StateStore
+{
+	private static final Logger L=Logger.getLogger(StateStore.class.getName());
+
+	private static final int STATE_MAGIC=0x4B324D53;
+	private static final int STATE_VERSION=2;
+	private static final int HEADER_SIZE=16;
+	/* Longest ASDU of a standard frame, e.g. a 14 character string */
+	private static final int MAX_ASDU_LENGTH=14;
+	private static final int SLOT_SIZE=40;
+	private static final int OFFSET_LAST_UPDATE=0;
+	private static final int OFFSET_LAST_CHANGE=8;
+	private static final int OFFSET_SRC=16;
+	private static final int OFFSET_ASDU_LENGTH=18;
+	private static final int OFFSET_ASDU=19;
+	private static final int OFFSET_DPT_HASH=36;
+
+	/* null unless knx.statefile is set */
+	private static MappedByteBuffer buf;
+
+	/**
+	 * Open the state file configured with knx.statefile, if any, and start syncing it
+	 * to disk every knx.statesync seconds
+	 */
+	static void open()
+	{
+		String filename=System.getProperty("knx2mqtt.knx.statefile");
+		if(filename==null)
+			return;
+		File f=new File(filename);
+		int size=HEADER_SIZE+65536*SLOT_SIZE;
+		try(RandomAccessFile raf=new RandomAccessFile(f,"rw"))
+		{
+			if(raf.length()!=0 && !isValid(raf,size))
+			{
+				L.warning("State file "+f+" is invalid or has an incompatible format, starting with an empty state");
+				raf.setLength(0);
+			}
+			MappedByteBuffer b=raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,size);
+			b.putInt(0,STATE_MAGIC);
+			b.putInt(4,STATE_VERSION);
+			b.putInt(8,SLOT_SIZE);
+			buf=b;
+		}
+		catch(IOException e)
+		{
+			L.log(Level.SEVERE,"Unable to open state file "+f+", state will not be kept across restarts",e);
+			return;
+		}
+		long syncInterval=Long.getLong("knx2mqtt.knx.statesync",10).longValue()*1000;
+		// The mapping is written back by the OS anyway; syncing only limits what a system crash can lose
+		Main.t.schedule(new TimerTask(){
+			@Override
+			public void run()
+			{
+				buf.force();
+			}
+		},syncInterval,syncInterval);
+		L.info("Using state file "+f);
+	}
+
+	private static boolean isValid(RandomAccessFile raf,int size) throws IOException
+	{
+		if(raf.length()!=size)
+			return false;
+		raf.seek(0);
+		return raf.readInt()==STATE_MAGIC && raf.readInt()==STATE_VERSION && raf.readInt()==SLOT_SIZE;
+	}
+
+	/**
+	 * Store the current state of a group address. Only called by the KNX listener.
+	 */
+	static void store(GroupAddressInfo gai)
+	{
+		ByteBuffer b=buf;
+		if(b==null)
+			return;
+		int address=gai.rawAddress;
+		byte asdu[]=ValueStore.getAsdu(address);
+		if(asdu.length>MAX_ASDU_LENGTH)
+			return;
+		int slot=HEADER_SIZE+address*SLOT_SIZE;
+		b.putLong(slot+OFFSET_LAST_UPDATE,ValueStore.getLastUpdate(address));
+		b.putLong(slot+OFFSET_LAST_CHANGE,ValueStore.getLastChange(address));
+		b.putShort(slot+OFFSET_SRC,(short)ValueStore.getSrc(address));
+		b.put(slot+OFFSET_ASDU_LENGTH,(byte)asdu.length);
+		for(int ix=0;ix<asdu.length;ix++)
+			b.put(slot+OFFSET_ASDU+ix,asdu[ix]);
+		b.putInt(slot+OFFSET_DPT_HASH,dptHash(gai));
+	}
+
+	private static int dptHash(GroupAddressInfo gai)
+	{
+		return gai.dpt!=null ? gai.dpt.hashCode() : 0;
+	}
+
+	/**
+	 * Forget the stored state of a group address
+	 */
+	static void clear(int address)
+	{
+		ByteBuffer b=buf;
+		if(b==null)
+			return;
+		int slot=HEADER_SIZE+address*SLOT_SIZE;
+		for(int ix=0;ix<SLOT_SIZE;ix++)
+			b.put(slot+ix,(byte)0);
+	}
+
+	/**
+	 * Restore the stored state of a group address, if there is any and it was stored
+	 * with the same DPT
+	 */
+	static void restore(GroupAddressInfo gai)
+	{
+		ByteBuffer b=buf;
+		if(b==null)
+			return;
+		int slot=HEADER_SIZE+gai.rawAddress*SLOT_SIZE;
+		int length=b.get(slot+OFFSET_ASDU_LENGTH);
+		if(length<=0 || length>MAX_ASDU_LENGTH)
+			return;
+		if(b.getInt(slot+OFFSET_DPT_HASH)!=dptHash(gai))
+		{
+			L.fine("Not restoring the state of "+gai.name+", it was stored with a different DPT");
+			return;
+		}
+		byte asdu[]=new byte[length];
+		for(int ix=0;ix<length;ix++)
+			asdu[ix]=b.get(slot+OFFSET_ASDU+ix);
+		gai.restoreState(asdu,b.getShort(slot+OFFSET_SRC)&0xffff,b.getLong(slot+OFFSET_LAST_UPDATE),b.getLong(slot+OFFSET_LAST_CHANGE));
+	}
+}
@@ -2,11 +2,24 @@ package com.tellerulam.knx2mqtt;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.util.*;
 import java.util.Formatter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.logging.*;
 
+/**
+ * Sends log records to a syslog server via UDP.
+ *
+ * By default, records are handed to a sender thread through a bounded queue, so
+ * logging never waits for formatting or the network. If the queue is full, records
+ * are dropped and the number of dropped records is reported with the next message.
+ * Setting the property .async=false sends them synchronously on the logging thread.
+ */
 @SuppressWarnings("boxing")
 public class SyslogHandler extends Handler
 {
@@ -18,16 +31,38 @@ public class SyslogHandler extends Handler
 		}
 	}
 
-	private final DatagramSocket ds;
+	private static final int MAX_MESSAGE_LENGTH=1024;
+
+	private final DatagramChannel channel;
 	private String hostname;
 	private String pidSuffix;
 
-	public SyslogHandler() throws SocketException, UnknownHostException
+	/*
+	 * Only used by the sending thread (or under the lock of this handler in synchronous mode)
+	 */
+	private final ByteBuffer buf=ByteBuffer.allocateDirect(MAX_MESSAGE_LENGTH);
+	private byte[] headerSuffix;
+	private final byte[] timestamp=new byte[15];
+	private long timestampSecond=-1;
+	private final Calendar cal=Calendar.getInstance();
+	private final StringBuilder timestampBuilder=new StringBuilder();
+
+	private final boolean async;
+	private final int queueLimit;
+	private final Queue<LogRecord> queue=new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued=new AtomicInteger();
+	private final AtomicLong dropped=new AtomicLong();
+	private long droppedReported;
+	private volatile boolean closed;
+	private Thread sender;
+
+	public SyslogHandler() throws IOException
 	{
-		ds=new DatagramSocket();
-		String syslogHost=LogManager.getLogManager().getProperty(getClass().getName()+".host");
-		String syslogPort=LogManager.getLogManager().getProperty(getClass().getName()+".port");
-		ds.connect(new InetSocketAddress(
+		LogManager manager=LogManager.getLogManager();
+		String syslogHost=manager.getProperty(getClass().getName()+".host");
+		String syslogPort=manager.getProperty(getClass().getName()+".port");
+		channel=DatagramChannel.open();
+		channel.connect(new InetSocketAddress(
 			syslogHost!=null?syslogHost:"localhost",
 			syslogPort!=null?Integer.parseInt(syslogPort):514
 		));
@@ -50,19 +85,56 @@ public class SyslogHandler extends Handler
 		{
 			pidSuffix="";
 		}
+		headerSuffix=(" "+hostname+" knx2mqtt"+pidSuffix+": ").getBytes(StandardCharsets.US_ASCII);
+
+		async=!"false".equals(manager.getProperty(getClass().getName()+".async"));
+		String queueSize=manager.getProperty(getClass().getName()+".queuesize");
+		queueLimit=queueSize!=null?Integer.parseInt(queueSize):1000;
+		if(async)
+		{
+			sender=new Thread("Syslog Sender Thread") {
+				@Override
+				public void run()
+				{
+					sendQueued();
+				}
+			};
+			sender.setDaemon(true);
+			sender.start();
+		}
 	}
 
 	@Override
 	public void close() throws SecurityException
 	{
-		if(ds!=null)
-			ds.close();
+		closed=true;
+		if(sender!=null)
+		{
+			// Give the sender a chance to get rid of what's still queued
+			LockSupport.unpark(sender);
+			try
+			{
+				sender.join(2000);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		try
+		{
+			channel.close();
+		}
+		catch(IOException e)
+		{
+			/* Ignore */
+		}
 	}
 
 	@Override
 	public void flush()
 	{
-		/* Nothing to do, we sent immediately */
+		/* Nothing to do, we send as soon as possible */
 	}
 
 	private final Map<Level,Integer> levels=new HashMap<>();
@@ -76,15 +148,88 @@ public class SyslogHandler extends Handler
 		levels.put(Level.FINEST,7);
 	}
 
-	private void sendSyslogMessage(StringBuilder msg)
+	@Override
+	public void publish(LogRecord r)
+	{
+		if(closed || !isLoggable(r))
+			return;
+		if(!async)
+		{
+			synchronized(this)
+			{
+				send(r);
+			}
+			return;
+		}
+		int n=queued.incrementAndGet();
+		if(n>queueLimit)
+		{
+			queued.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.offer(r);
+		// The sender only parks when it found the queue empty
+		if(n==1)
+			LockSupport.unpark(sender);
+	}
+
+	private void sendQueued()
 	{
-		if(ds==null)
+		for(;;)
+		{
+			LogRecord r=queue.poll();
+			if(r==null)
+			{
+				if(closed)
+					return;
+				LockSupport.parkNanos(1000000000L);
+				continue;
+			}
+			queued.decrementAndGet();
+			long d=dropped.get();
+			if(d!=droppedReported)
+			{
+				LogRecord notice=new LogRecord(Level.WARNING,"Syslog queue full, dropped "+(d-droppedReported)+" log messages");
+				notice.setMillis(r.getMillis());
+				send(notice);
+				droppedReported=d;
+			}
+			try
+			{
+				send(r);
+			}
+			catch(RuntimeException e)
+			{
+				/* Ignore, a broken record must not stop the sender */
+			}
+		}
+	}
+
+	/*
+	 * Render the "Mmm dd hh:mm:ss" timestamp, only once per second
+	 */
+	private void updateTimestamp(long millis)
+	{
+		long second=millis/1000;
+		if(second==timestampSecond)
 			return;
+		timestampSecond=second;
+		cal.setTimeInMillis(millis);
+		timestampBuilder.setLength(0);
+		Formatter dateFormatter=new Formatter(timestampBuilder,Locale.US);
+		dateFormatter.format("%1$tb %2$2d %1$TT",cal,cal.get(Calendar.DAY_OF_MONTH));
+		dateFormatter.close();
+		for(int ix=0;ix<timestamp.length;ix++)
+			timestamp[ix]=(byte)timestampBuilder.charAt(ix);
+	}
 
-		byte msgData[]=msg.toString().getBytes(StandardCharsets.US_ASCII);
+	private void sendSyslogMessage()
+	{
+		buf.flip();
 		try
 		{
-			ds.send(new DatagramPacket(msgData,msgData.length));
+			channel.write(buf);
 		}
 		catch(IOException e)
 		{
@@ -92,55 +237,55 @@ public class SyslogHandler extends Handler
 		}
 	}
 
-	@Override
-	public void publish(LogRecord r)
+	private void send(LogRecord r)
 	{
-		if(ds==null)
-			return; // We are disabled
-
 		int facility=23; // Local 23
 		// Convert priority
-		int pri=levels.get(r.getLevel()).intValue();
-
-		Calendar cal=Calendar.getInstance();
-		cal.setTimeInMillis(r.getMillis());
+		Integer pri=levels.get(r.getLevel());
+		if(pri==null)
+			pri=7;
+		String msg=r.getMessage();
+		if(msg==null)
+			return;
 
-		StringBuilder m=new StringBuilder();
-		m.append('<');
-		m.append(facility*8+pri);
-		m.append("> ");
-		Formatter dateFormatter=new Formatter(m,Locale.US);
-		dateFormatter.format("%1$tb %2$2d %1$TT",cal,cal.get(Calendar.DAY_OF_MONTH));
-		dateFormatter.close();
-		m.append(" ");
-		m.append(hostname);
-		m.append(" knx2mqtt");
-		m.append(pidSuffix);
-		m.append(": ");
-		int prefixLength=m.length();
-		for(char ch:r.getMessage().toCharArray())
+		updateTimestamp(r.getMillis());
+		buf.clear();
+		buf.put((byte)'<');
+		int code=facility*8+pri;
+		if(code>=100)
+			buf.put((byte)('0'+code/100));
+		buf.put((byte)('0'+code/10%10));
+		buf.put((byte)('0'+code%10));
+		buf.put((byte)'>');
+		buf.put((byte)' ');
+		buf.put(timestamp);
+		buf.put(headerSuffix);
+		int prefixLength=buf.position();
+		for(int ix=0,len=msg.length();ix<len;ix++)
 		{
+			char ch=msg.charAt(ix);
 			if(ch=='\r')
 				continue;
 			if(ch=='\n')
 			{
-				sendSyslogMessage(m);
-				m.setLength(prefixLength);
+				sendSyslogMessage();
+				buf.clear();
+				buf.position(prefixLength);
 				continue;
 			}
-			if(m.length()==1020)
+			if(buf.position()==MAX_MESSAGE_LENGTH-4)
 			{
-				m.append("...");
+				buf.put((byte)'.').put((byte)'.').put((byte)'.');
 			}
-			if(m.length()==1023)
+			if(buf.position()==MAX_MESSAGE_LENGTH-1)
 				continue;
 			if(ch>=126)
-				m.append('_');
+				buf.put((byte)'_');
 			else
-				m.append(ch);
+				buf.put((byte)ch);
 		}
-		if(m.length()!=prefixLength)
-			sendSyslogMessage(m);
+		if(buf.position()!=prefixLength)
+			sendSyslogMessage();
 	}
 
 }
@@ -0,0 +1,63 @@
+package com.tellerulam.knx2mqtt;
+
+/**
+ * Token bucket rate limiter. Tokens are refilled continuously at the current
+ * rate, up to the burst size. The rate can be changed at any time.
+ */
+public class TokenBucket
+{
+	private final double burst;
+	private double rate;
+	private double tokens;
+	private long lastRefill;
+
+	public TokenBucket(double rate,double burst)
+	{
+		if(rate<=0 || burst<1)
+			throw new IllegalArgumentException("Token bucket needs a positive rate and a burst size of at least 1");
+		this.rate=rate;
+		this.burst=burst;
+		this.tokens=burst;
+		this.lastRefill=System.nanoTime();
+	}
+
+	private void refill()
+	{
+		long now=System.nanoTime();
+		tokens=Math.min(burst,tokens+(now-lastRefill)*rate/1e9);
+		lastRefill=now;
+	}
+
+	/**
+	 * Take one token, waiting for it if necessary
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		for(;;)
+		{
+			refill();
+			if(tokens>=1)
+			{
+				tokens-=1;
+				return;
+			}
+			long waitNanos=(long)((1-tokens)*1e9/rate);
+			// Wait instead of sleep, so a rate change wakes us up
+			wait(Math.max(1,waitNanos/1000000),(int)(waitNanos%1000000));
+		}
+	}
+
+	public synchronized void setRate(double rate)
+	{
+		if(rate<=0)
+			throw new IllegalArgumentException("Token bucket rate must be positive");
+		refill();
+		this.rate=rate;
+		notifyAll();
+	}
+
+	public synchronized double getRate()
+	{
+		return rate;
+	}
+}
@@ -0,0 +1,211 @@
+package com.tellerulam.knx2mqtt;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runtime state of all group addresses, in parallel primitive arrays indexed by the raw
+ * 16-bit group address, which already is a dense slot number (like the address-indexed
+ * lookup table and the state file).
+ *
+ * A value is stored as a type tag and 64 bits: integral values as they are, floating point
+ * values as their bits, strings by reference. Storing a value thus neither boxes nor
+ * allocates, and change detection is a primitive compare.
+ *
+ * The value, source, ASDU and publish state are only written under the ingest lock: by the
+ * KNX listener, and by the publish policy timers and table reloads. Other threads may read
+ * a slot's value after reading its last update time, which is written last with release
+ * semantics.
+ */
+public class ValueStore
+{
+	public static final int TYPE_NONE=0;
+	public static final int TYPE_LONG=1;
+	public static final int TYPE_DOUBLE=2;
+	public static final int TYPE_STRING=3;
+
+	private static final int SLOTS=65536;
+
+	private static final byte type[]=new byte[SLOTS];
+	private static final long bits[]=new long[SLOTS];
+	private static final String string[]=new String[SLOTS];
+	private static final byte asdu[][]=new byte[SLOTS][];
+	private static final int src[]=new int[SLOTS];
+	private static final long lastChange[]=new long[SLOTS];
+	private static final AtomicLongArray lastUpdate=new AtomicLongArray(SLOTS);
+
+	private static final byte publishedType[]=new byte[SLOTS];
+	private static final long publishedBits[]=new long[SLOTS];
+	private static final String publishedString[]=new String[SLOTS];
+	private static final long publishTime[]=new long[SLOTS];
+
+	private ValueStore()
+	{
+		/* Static only */
+	}
+
+	/**
+	 * Forget everything about a slot, e.g. because it now belongs to a different group address
+	 */
+	static void clear(int slot)
+	{
+		type[slot]=TYPE_NONE;
+		bits[slot]=0;
+		string[slot]=null;
+		asdu[slot]=null;
+		src[slot]=0;
+		lastChange[slot]=0;
+		publishedType[slot]=TYPE_NONE;
+		publishedBits[slot]=0;
+		publishedString[slot]=null;
+		publishTime[slot]=0;
+		lastUpdate.lazySet(slot,0);
+	}
+
+	/**
+	 * Store a received value
+	 *
+	 * @param s the value if valueType is TYPE_STRING, otherwise ignored
+	 * @return true if the value differs from the previous one
+	 */
+	static boolean store(int slot,int valueType,long valueBits,String s,byte data[],int srcAddress,long now)
+	{
+		boolean changed;
+		if(type[slot]!=TYPE_NONE)
+			changed=!equals(type[slot],bits[slot],string[slot],valueType,valueBits,s);
+		else
+			// The value restored from the state file may not have been decodable, so compare the ASDU
+			changed=asdu[slot]==null || !Arrays.equals(asdu[slot],data);
+		type[slot]=(byte)valueType;
+		bits[slot]=valueBits;
+		string[slot]=valueType==TYPE_STRING ? s : null;
+		asdu[slot]=data;
+		src[slot]=srcAddress;
+		if(changed)
+			lastChange[slot]=now;
+		lastUpdate.lazySet(slot,now);
+		return changed;
+	}
+
+	/**
+	 * Set the state of a slot from the state file. valueType may be TYPE_NONE if the
+	 * value couldn't be decoded.
+	 */
+	static void restore(int slot,int valueType,long valueBits,String s,byte data[],int srcAddress,long updateTime,long changeTime)
+	{
+		type[slot]=(byte)valueType;
+		bits[slot]=valueBits;
+		string[slot]=s;
+		asdu[slot]=data;
+		src[slot]=srcAddress;
+		lastChange[slot]=changeTime;
+		lastUpdate.lazySet(slot,updateTime);
+	}
+
+	private static boolean equals(int t1,long b1,String s1,int t2,long b2,String s2)
+	{
+		if(t1!=t2)
+			return false;
+		if(t1==TYPE_STRING)
+			return s1.equals(s2);
+		return b1==b2;
+	}
+
+	static double toDouble(int valueType,long valueBits)
+	{
+		return valueType==TYPE_DOUBLE ? Double.longBitsToDouble(valueBits) : valueBits;
+	}
+
+	/**
+	 * @return the value as an object, for diagnostics
+	 */
+	static Object toObject(int valueType,long valueBits,String s)
+	{
+		switch(valueType)
+		{
+			case TYPE_LONG:
+				return Long.valueOf(valueBits);
+			case TYPE_DOUBLE:
+				return Double.valueOf(Double.longBitsToDouble(valueBits));
+			case TYPE_STRING:
+				return s;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @return the time of the last update, 0 if there was none. Read this first when
+	 * reading a slot from another thread than the KNX listener
+	 */
+	static long getLastUpdate(int slot)
+	{
+		return lastUpdate.get(slot);
+	}
+
+	static int getType(int slot)
+	{
+		return type[slot];
+	}
+
+	static long getBits(int slot)
+	{
+		return bits[slot];
+	}
+
+	static String getString(int slot)
+	{
+		return string[slot];
+	}
+
+	static byte[] getAsdu(int slot)
+	{
+		return asdu[slot];
+	}
+
+	static int getSrc(int slot)
+	{
+		return src[slot];
+	}
+
+	static long getLastChange(int slot)
+	{
+		return lastChange[slot];
+	}
+
+	/**
+	 * Remember the current value as the last published one
+	 */
+	static void markPublished(int slot,long now)
+	{
+		publishedType[slot]=type[slot];
+		publishedBits[slot]=bits[slot];
+		publishedString[slot]=string[slot];
+		publishTime[slot]=now;
+	}
+
+	static boolean hasPublished(int slot)
+	{
+		return publishedType[slot]!=TYPE_NONE;
+	}
+
+	static boolean isUnchangedSincePublished(int slot)
+	{
+		return equals(type[slot],bits[slot],string[slot],publishedType[slot],publishedBits[slot],publishedString[slot]);
+	}
+
+	static int getPublishedType(int slot)
+	{
+		return publishedType[slot];
+	}
+
+	static long getPublishedBits(int slot)
+	{
+		return publishedBits[slot];
+	}
+
+	static long getPublishTime(int slot)
+	{
+		return publishTime[slot];
+	}
+}